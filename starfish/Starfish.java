@@ -13,58 +13,95 @@ this program. If not, see <https://www.gnu.org/licenses/>.
 
 package starfish;
 
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
 import java.awt.Dimension;
 import java.awt.GridLayout;
+import java.awt.Insets;
+import java.awt.Rectangle;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.math.BigDecimal;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Random;
+import java.util.SplittableRandom;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+import jdk.jfr.Category;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
 
-import javax.imageio.ImageIO;
 import javax.swing.*;
 import javax.swing.border.Border;
 import javax.swing.border.LineBorder;
 import javax.swing.filechooser.FileFilter;
 import javax.swing.plaf.nimbus.NimbusLookAndFeel;
 
-class RandomSingleton 
-{
-    private static RandomSingleton instance;
-    private Random rnd;
-
-    private RandomSingleton() 
-    {
-        rnd = new Random();
-    }
-
-    public static RandomSingleton getInstance() 
-    {
-        if(instance == null) 
-        {
-            instance = new RandomSingleton();
-        }
-        return instance;
-    }
-
-    public int nextInt(int n) 
-    {
-        return rnd.nextInt(n);
-    }
-
-    public double nextDouble() 
-    {
-        return rnd.nextDouble();
-    }
-}
-
 class PathSingleton 
 {
     private static PathSingleton instance;
@@ -109,52 +146,388 @@ class pixel
     }	
 }
 
+// Colours travel through the image layers packed as 0xRRGGBB ints, and
+// blends use 16-bit fixed-point weights, so rendering a pixel allocates
+// nothing.
+final class PackedPixel
+{
+    static final int ONE = 1 << 16;
+
+    private PackedPixel()
+    {
+    }
+
+    // Maps a blend factor in [0, 1] to a weight in [0, ONE]. Out of range
+    // factors are clamped and NaN counts as zero.
+    static int weight(double f)
+    {
+        int w = (int) (f * ONE);
+        if (w < 0) return 0;
+        if (w > ONE) return ONE;
+        return w;
+    }
+
+    static int lerp(int a, int b, int w)
+    {
+        return a + (((b - a) * w + 0x8000) >> 16);
+    }
+
+    static int blend(int a, int b, int w)
+    {
+        int red = lerp((a >> 16) & 0xFF, (b >> 16) & 0xFF, w);
+        int green = lerp((a >> 8) & 0xFF, (b >> 8) & 0xFF, w);
+        int blue = lerp(a & 0xFF, b & 0xFF, w);
+        return (red << 16) | (green << 8) | blue;
+    }
+
+    // largest difference between a and b in any one channel
+    static int distance(int a, int b)
+    {
+        int red = Math.abs(((a >> 16) & 0xFF) - ((b >> 16) & 0xFF));
+        int green = Math.abs(((a >> 8) & 0xFF) - ((b >> 8) & 0xFF));
+        int blue = Math.abs((a & 0xFF) - (b & 0xFF));
+        return Math.max(red, Math.max(green, blue));
+    }
+}
+
+// Approximations used by the fast quality mode. Every function here stays
+// within a fixed error of its java.lang.Math counterpart:
+//   cos, sin     absolute error below 3e-7 (interpolated 4096-entry table)
+//   atan, atan2  absolute error below 1e-7 rad (A&S 4.4.49 polynomial)
+// Square roots and powers are left to Math.sqrt and Math.pow: sqrt is a
+// single instruction, and every pow approximation tried that met a 1e-7
+// bound was slower than the Math.pow intrinsic. Arguments outside the
+// table's reach fall back to Math.
+final class FastMath
+{
+    private static final int TRIG_BITS = 12;
+    private static final int TRIG_SIZE = 1 << TRIG_BITS;
+    private static final double TRIG_SCALE = TRIG_SIZE / (2.0 * Math.PI);
+    private static final double[] COS = new double[TRIG_SIZE + 1];
+
+    static
+    {
+        for (int i = 0; i <= TRIG_SIZE; i++)
+        {
+            COS[i] = Math.cos(i / TRIG_SCALE);
+        }
+    }
+
+    private FastMath()
+    {
+    }
+
+    static double cos(double a)
+    {
+        double t = a * TRIG_SCALE;
+        if (!(Math.abs(t) < 0x1p52))
+        {
+            return Math.cos(a);
+        }
+        double f = Math.floor(t);
+        int i = (int) ((long) f & (TRIG_SIZE - 1));
+        double c = COS[i];
+        return c + (COS[i + 1] - c) * (t - f);
+    }
+
+    static double sin(double a)
+    {
+        return cos(a - Math.PI / 2.0);
+    }
+
+    // arctangent for |z| <= 1
+    private static double atanUnit(double z)
+    {
+        double z2 = z * z;
+        return z * (1.0 + z2 * (-0.3333314528 + z2 * (0.1999355085 + z2 * (-0.1420889944
+                + z2 * (0.1065626393 + z2 * (-0.0752896400 + z2 * (0.0429096138
+                + z2 * (-0.0161657367 + z2 * 0.0028662257))))))));
+    }
+
+    static double atan(double z)
+    {
+        if (Math.abs(z) <= 1.0)
+        {
+            return atanUnit(z);
+        }
+        if (Double.isNaN(z))
+        {
+            return z;
+        }
+        double a = Math.PI / 2.0 - atanUnit(1.0 / Math.abs(z));
+        return (z < 0) ? -a : a;
+    }
+
+    static double atan2(double y, double x)
+    {
+        double ax = Math.abs(x);
+        double ay = Math.abs(y);
+        if (ax == 0.0 || ay == 0.0 || Double.isInfinite(ax) || Double.isInfinite(ay)
+                || Double.isNaN(x) || Double.isNaN(y))
+        {
+            // zeros, infinities and NaN follow Math's sign conventions
+            return Math.atan2(y, x);
+        }
+        double a = (ay <= ax) ? atanUnit(ay / ax) : Math.PI / 2.0 - atanUnit(ax / ay);
+        if (x < 0)
+        {
+            a = Math.PI - a;
+        }
+        return (y < 0) ? -a : a;
+    }
+}
+
 class StarfishPalette
 {
+    String name;
     int colourCount;
     pixel[] colour = new pixel[256];
+
+    StarfishPalette copy()
+    {
+        StarfishPalette p = new StarfishPalette();
+        p.name = name;
+        p.colourCount = colourCount;
+        for (int i = 0; i < colourCount; i++)
+        {
+            p.colour[i] = new pixel(colour[i].red, colour[i].green, colour[i].blue);
+        }
+        return p;
+    }
+
+    // Reads the bundled palettes.txt: a "#Name" line starts a palette, one
+    // hex RRGGBB colour per line follows, and a "=" line closes it.
+    static StarfishPalette[] loadPalettes() throws IOException
+    {
+        StarfishPalette[] palettes = new StarfishPalette[256];
+        int numberOfPalettes = 0;
+        int numberOfColors = 0;
+        InputStream is = StarfishPalette.class.getResourceAsStream("/resource/palettes.txt");
+        if (is == null)
+        {
+            throw new IOException("palettes.txt not found");
+        }
+        BufferedReader br = new BufferedReader(new InputStreamReader(is));
+        try
+        {
+            String w;
+            while ((w = br.readLine()) != null) 
+            {
+                if (!w.equals(""))
+                {
+                    if (w.startsWith("#"))
+                    {
+                        palettes[numberOfPalettes] = new StarfishPalette();
+                        palettes[numberOfPalettes].name = w.substring(1);
+                    }
+                    else if (w.startsWith("="))
+                    {
+                        palettes[numberOfPalettes].colourCount = numberOfColors;
+                        numberOfColors = 0;
+                        numberOfPalettes++;
+                    }
+                    else
+                    {
+                        int c = Integer.parseInt(w, 16);
+                        int r = (c >>> 16) & 0xFF;
+                        int g = (c >>> 8) & 0xFF;
+                        int b = (c) & 0xFF;
+                        palettes[numberOfPalettes].colour[numberOfColors] = new pixel(r,g,b);
+                        numberOfColors++;
+                    }
+                }
+            }
+        }
+        finally
+        {
+            br.close();
+        }
+        StarfishPalette[] out = new StarfishPalette[numberOfPalettes];
+        System.arraycopy(palettes, 0, out, 0, numberOfPalettes);
+        return out;
+    }
 }
 
+// The adaptive modes sample each pixel once and take 4, 8 or 16 more
+// samples only where it differs sharply from a neighbour.
 enum AAMode
 {
     AAMODE_NONE,
     AAMODE_2X,
-    AAMODE_4X
+    AAMODE_4X,
+    AAMODE_ADAPTIVE_4X,
+    AAMODE_ADAPTIVE_8X,
+    AAMODE_ADAPTIVE_16X
+}
+
+// WRAP_BLEND makes a tile by blending four samples of the tree per pixel.
+// WRAP_MIRROR samples once, on coordinates folded back on themselves, so
+// the tile costs no more than an unwrapped image but is mirrored about
+// its centre lines.
+enum WrapMode
+{
+    WRAP_NONE,
+    WRAP_BLEND,
+    WRAP_MIRROR
+}
+
+// SIMPLIFY_EXACT only makes rewrites that leave every sample unchanged.
+// SIMPLIFY_RELAXED also merges nodes whose combined arithmetic rounds
+// differently, which moves samples by a few ULPs. SIMPLIFY_LOSSY also
+// drops the weaker side of a lopsided mix, which moves samples by up to
+// 2 * Simplifier.NEGLIGIBLE, a sixteenth of a colour level.
+enum SimplifyMode
+{
+    SIMPLIFY_NONE,
+    SIMPLIFY_EXACT,
+    SIMPLIFY_RELAXED,
+    SIMPLIFY_LOSSY
 }
 
+// Each node can be evaluated one sample at a time or a block at a time.
+// The block forms fill out[0..n) and must give exactly the same results as
+// calling the scalar form on each element; out never aliases an input.
+
 interface ImageLayer 
 {
-    pixel value(double x, double y);
+    // Returns the colour at (x, y) packed as 0xRRGGBB.
+    int value(double x, double y);
+
+    void value(double[] x, double[] y, int[] out, int n);
 }
 
 interface LinearWave
 {
     double value(double d);
+
+    void value(double[] d, double[] out, int n);
 }
 
 interface PlanarWave 
 {
     double value(double x, double y);
+
+    void value(double[] x, double[] y, double[] out, int n);
+}
+
+// Per-thread stack of temporary arrays for block evaluation. A node takes
+// what it needs after noting the mark and resets to it before returning,
+// so a render reuses the same few arrays for every row.
+final class BlockScratch
+{
+    private static final ThreadLocal<BlockScratch> LOCAL = new ThreadLocal<BlockScratch>()
+    {
+        protected BlockScratch initialValue()
+        {
+            return new BlockScratch();
+        }
+    };
+
+    private double[][] mDoubles = new double[32][];
+    private int[][] mInts = new int[8][];
+    private int mDoubleTop;
+    private int mIntTop;
+
+    static BlockScratch get()
+    {
+        return LOCAL.get();
+    }
+
+    int mark()
+    {
+        return (mIntTop << 16) | mDoubleTop;
+    }
+
+    void reset(int mark)
+    {
+        mIntTop = mark >>> 16;
+        mDoubleTop = mark & 0xFFFF;
+    }
+
+    double[] take(int n)
+    {
+        if (mDoubleTop == mDoubles.length)
+        {
+            mDoubles = Arrays.copyOf(mDoubles, mDoubles.length * 2);
+        }
+        double[] a = mDoubles[mDoubleTop];
+        if (a == null || a.length < n)
+        {
+            a = new double[n];
+            mDoubles[mDoubleTop] = a;
+        }
+        mDoubleTop++;
+        return a;
+    }
+
+    int[] takeInts(int n)
+    {
+        if (mIntTop == mInts.length)
+        {
+            mInts = Arrays.copyOf(mInts, mInts.length * 2);
+        }
+        int[] a = mInts[mIntTop];
+        if (a == null || a.length < n)
+        {
+            a = new int[n];
+            mInts[mIntTop] = a;
+        }
+        mIntTop++;
+        return a;
+    }
 }
 
 class Coswave implements LinearWave
 {
-    RandomSingleton r = RandomSingleton.getInstance();
-    double mPhase = r.nextDouble() * Math.PI;
-    double mPeriod = Math.PI / Math.pow(r.nextDouble(), 0.5);
+    double mPhase;
+    double mPeriod;
+    boolean mFastMath;
+
+    Coswave(SplittableRandom r, boolean fastMath)
+    {
+        mPhase = r.nextDouble() * Math.PI;
+        mPeriod = Math.PI / Math.pow(r.nextDouble(), 0.5);
+        mFastMath = fastMath;
+    }
 
     public double value (double d)
     {
+        if (mFastMath)
+        {
+            return FastMath.cos(d * mPeriod + mPhase);
+        }
         return Math.cos(d * mPeriod + mPhase);
     }
+
+    public void value(double[] d, double[] out, int n)
+    {
+        if (mFastMath)
+        {
+            for (int i = 0; i < n; i++)
+            {
+                out[i] = FastMath.cos(d[i] * mPeriod + mPhase);
+            }
+            return;
+        }
+        for (int i = 0; i < n; i++)
+        {
+            out[i] = Math.cos(d[i] * mPeriod + mPhase);
+        }
+    }
 }
 
 class Sawtooth implements LinearWave
 {
-    RandomSingleton r = RandomSingleton.getInstance();
-    double mPeriod = 1.0 / Math.pow(r.nextDouble(), 0.5);
-    double mPhase  = r.nextDouble() * 2.0;
-    double mFlipSign = (r.nextDouble() >= 0.5) ? 1.0 : -1.0;
+    double mPeriod;
+    double mPhase;
+    double mFlipSign;
+
+    Sawtooth(SplittableRandom r)
+    {
+        mPeriod = 1.0 / Math.pow(r.nextDouble(), 0.5);
+        mPhase  = r.nextDouble() * 2.0;
+        mFlipSign = (r.nextDouble() >= 0.5) ? 1.0 : -1.0;
+    }
 
     public double value(double d) 
     {
@@ -163,19 +536,43 @@ class Sawtooth implements LinearWave
         d = (d * 2.0) - 1.0;
         return d * mFlipSign; 
     }
+
+    public void value(double[] d, double[] out, int n)
+    {
+        for (int i = 0; i < n; i++)
+        {
+            double v = (d[i] + mPhase) * mPeriod;
+            v = v - Math.floor(v);
+            v = (v * 2.0) - 1.0;
+            out[i] = v * mFlipSign;
+        }
+    }
 }
 
 class Ess implements LinearWave
 {
-    RandomSingleton r = RandomSingleton.getInstance();
-    double mAcceleration = (r.nextDouble() >= 0.5) ? r.nextDouble() :
-    	1.0 / (1.0 - r.nextDouble());
-    double mFlipSign = (r.nextDouble() >= 0.5) ? 1.0 : -1.0;
+    double mAcceleration;
+    double mFlipSign;
+
+    Ess(SplittableRandom r)
+    {
+        mAcceleration = (r.nextDouble() >= 0.5) ? r.nextDouble() :
+        	1.0 / (1.0 - r.nextDouble());
+        mFlipSign = (r.nextDouble() >= 0.5) ? 1.0 : -1.0;
+    }
 
     public double value(double d)
     {
         return ((2.0/(mAcceleration*d*d+1.0))-1.0) * mFlipSign;
     }
+
+    public void value(double[] d, double[] out, int n)
+    {
+        for (int i = 0; i < n; i++)
+        {
+            out[i] = ((2.0/(mAcceleration*d[i]*d[i]+1.0))-1.0) * mFlipSign;
+        }
+    }
 }	
 
 class InvertWave implements LinearWave
@@ -190,16 +587,26 @@ class InvertWave implements LinearWave
     {
         return -mSource.value(d);
     }
+
+    public void value(double[] d, double[] out, int n)
+    {
+        mSource.value(d, out, n);
+        for (int i = 0; i < n; i++)
+        {
+            out[i] = -out[i];
+        }
+    }
 }	
 
 class InsertWavePeaks implements LinearWave
 {
     LinearWave mSource;
-    RandomSingleton r = RandomSingleton.getInstance();
-    double mScale = (r.nextDouble() * r.nextDouble() * 8.0) + 1.0;
-    boolean mProcessSign = r.nextDouble() >= 0.5;
-    InsertWavePeaks(LinearWave target)
+    double mScale;
+    boolean mProcessSign;
+    InsertWavePeaks(SplittableRandom r, LinearWave target)
     {
+        mScale = (r.nextDouble() * r.nextDouble() * 8.0) + 1.0;
+        mProcessSign = r.nextDouble() >= 0.5;
         mSource = target;
     }	
 
@@ -225,6 +632,33 @@ class InsertWavePeaks implements LinearWave
         }
         return skt;
     }
+
+    public void value(double[] d, double[] out, int n)
+    {
+        mSource.value(d, out, n);
+        for (int i = 0; i < n; i++)
+        {
+            double skt = out[i];
+            if (mProcessSign)
+            {
+                skt = (skt + 1.0) / 2.0;
+            }
+            skt = skt * mScale;
+            if (skt < 0)
+            {
+                skt = skt - Math.ceil(skt);
+            }
+            else
+            {
+                skt = skt - Math.floor(skt);
+            }
+            if (mProcessSign)
+            {
+                skt = (skt * 2.0) - 1.0;
+            }
+            out[i] = skt;
+        }
+    }
 }	
 
 class Modulator implements LinearWave
@@ -241,19 +675,35 @@ class Modulator implements LinearWave
     {
         return mSource.value(d + mWobbler.value(d));
     }
+
+    public void value(double[] d, double[] out, int n)
+    {
+        BlockScratch scratch = BlockScratch.get();
+        int mark = scratch.mark();
+        double[] t = scratch.take(n);
+        mWobbler.value(d, t, n);
+        for (int i = 0; i < n; i++)
+        {
+            t[i] = d[i] + t[i];
+        }
+        mSource.value(t, out, n);
+        scratch.reset(mark);
+    }
 }	
 
 class MixLinear implements LinearWave
 {
-	RandomSingleton r = RandomSingleton.getInstance();
-    double mAFactor= r.nextDouble();
-    double mBFactor = r.nextDouble();
-    double mSumFactor = mAFactor + mBFactor;
+    double mAFactor;
+    double mBFactor;
+    double mSumFactor;
     LinearWave mAWave;
     LinearWave mBWave;
 
-    MixLinear(LinearWave a, LinearWave b)
+    MixLinear(SplittableRandom r, LinearWave a, LinearWave b)
     {
+        mAFactor = r.nextDouble();
+        mBFactor = r.nextDouble();
+        mSumFactor = mAFactor + mBFactor;
         mAWave = a;
         mBWave = b;
     }
@@ -262,17 +712,31 @@ class MixLinear implements LinearWave
     {
         return (mAWave.value(d) * mAFactor + mBWave.value(d) * mBFactor) / mSumFactor;
     }
+
+    public void value(double[] d, double[] out, int n)
+    {
+        BlockScratch scratch = BlockScratch.get();
+        int mark = scratch.mark();
+        double[] b = scratch.take(n);
+        mAWave.value(d, out, n);
+        mBWave.value(d, b, n);
+        for (int i = 0; i < n; i++)
+        {
+            out[i] = (out[i] * mAFactor + b[i] * mBFactor) / mSumFactor;
+        }
+        scratch.reset(mark);
+    }
 }
 
 class MinimaxLinear implements LinearWave
 {
-	RandomSingleton r = RandomSingleton.getInstance();
-	boolean mMin = r.nextDouble() >= 0.5;
+    boolean mMin;
     LinearWave mASrc;
     LinearWave mBSrc;
 
-    MinimaxLinear(LinearWave a, LinearWave b)
+    MinimaxLinear(SplittableRandom r, LinearWave a, LinearWave b)
     {
+        mMin = r.nextDouble() >= 0.5;
         mASrc = a;
         mBSrc = b;
     }
@@ -288,6 +752,30 @@ class MinimaxLinear implements LinearWave
             return Math.max(mASrc.value(d), mBSrc.value(d));
         }
     }
+
+    public void value(double[] d, double[] out, int n)
+    {
+        BlockScratch scratch = BlockScratch.get();
+        int mark = scratch.mark();
+        double[] b = scratch.take(n);
+        mASrc.value(d, out, n);
+        mBSrc.value(d, b, n);
+        if (mMin)
+        {
+            for (int i = 0; i < n; i++)
+            {
+                out[i] = Math.min(out[i], b[i]);
+            }
+        }
+        else
+        {
+            for (int i = 0; i < n; i++)
+            {
+                out[i] = Math.max(out[i], b[i]);
+            }
+        }
+        scratch.reset(mark);
+    }
 }
 
 class MultiplyLinear implements LinearWave
@@ -305,16 +793,30 @@ class MultiplyLinear implements LinearWave
     {
         return mASrc.value(d) * mBSrc.value(d);
     }
+
+    public void value(double[] d, double[] out, int n)
+    {
+        BlockScratch scratch = BlockScratch.get();
+        int mark = scratch.mark();
+        double[] b = scratch.take(n);
+        mASrc.value(d, out, n);
+        mBSrc.value(d, b, n);
+        for (int i = 0; i < n; i++)
+        {
+            out[i] = out[i] * b[i];
+        }
+        scratch.reset(mark);
+    }
 }	
 
 class GammaLinear implements LinearWave
 {
-	RandomSingleton r = RandomSingleton.getInstance();
-    double mExp = 1.0 /(r.nextDouble() * 2.0);
+    double mExp;
     LinearWave mSource;
 
-    GammaLinear(LinearWave target)
+    GammaLinear(SplittableRandom r, LinearWave target)
     {
+        mExp = 1.0 /(r.nextDouble() * 2.0);
         mSource = target;
     }
 
@@ -325,6 +827,17 @@ class GammaLinear implements LinearWave
         cpf = Math.pow(cpf, mExp);
         return cpf * 2.0 + - 1.0;
     }
+
+    public void value(double[] d, double[] out, int n)
+    {
+        mSource.value(d, out, n);
+        for (int i = 0; i < n; i++)
+        {
+            double cpf = (out[i] + 1.0) / 2.0;
+            cpf = Math.pow(cpf, mExp);
+            out[i] = cpf * 2.0 + - 1.0;
+        }
+    }
 }
 
 class Pebbledrop implements PlanarWave
@@ -341,6 +854,19 @@ class Pebbledrop implements PlanarWave
         double hypotenuse = Math.sqrt(x*x + y*y);
         return mSource.value(hypotenuse);
     }
+
+    public void value(double[] x, double[] y, double[] out, int n)
+    {
+        BlockScratch scratch = BlockScratch.get();
+        int mark = scratch.mark();
+        double[] hypotenuse = scratch.take(n);
+        for (int i = 0; i < n; i++)
+        {
+            hypotenuse[i] = Math.sqrt(x[i]*x[i] + y[i]*y[i]);
+        }
+        mSource.value(hypotenuse, out, n);
+        scratch.reset(mark);
+    }
 }	
 
 class Curtain implements PlanarWave
@@ -356,17 +882,22 @@ class Curtain implements PlanarWave
     {
         return mSource.value(x);
     }
+
+    public void value(double[] x, double[] y, double[] out, int n)
+    {
+        mSource.value(x, out, n);
+    }
 }
 
 class Zigzag implements PlanarWave
 {
-	RandomSingleton r = RandomSingleton.getInstance();
-    double mAmplitude  = r.nextDouble();
+    double mAmplitude;
     LinearWave mOscillator;
     LinearWave mSource;
 
-    Zigzag(LinearWave source, LinearWave oscillator)
+    Zigzag(SplittableRandom r, LinearWave source, LinearWave oscillator)
     {
+        mAmplitude  = r.nextDouble();
         mSource = source;
         mOscillator = oscillator;
     }
@@ -375,43 +906,87 @@ class Zigzag implements PlanarWave
     {
         return mSource.value(x + mOscillator.value(y) * mAmplitude);
     }
+
+    public void value(double[] x, double[] y, double[] out, int n)
+    {
+        BlockScratch scratch = BlockScratch.get();
+        int mark = scratch.mark();
+        double[] t = scratch.take(n);
+        mOscillator.value(y, t, n);
+        for (int i = 0; i < n; i++)
+        {
+            t[i] = x[i] + t[i] * mAmplitude;
+        }
+        mSource.value(t, out, n);
+        scratch.reset(mark);
+    }
 }
 
 class Starfish2 implements PlanarWave
 {
-	RandomSingleton r = RandomSingleton.getInstance();
-    double mAmplitude = r.nextDouble();
-    double mAttenuation = 1.0 / r.nextDouble();
-    double mSpinRate = r.nextDouble();
+    double mAmplitude;
+    double mAttenuation;
+    double mSpinRate;
+    boolean mFastMath;
     LinearWave mOscillator;
     LinearWave mSource;
 
-    Starfish2(LinearWave source, LinearWave oscillator)
+    Starfish2(SplittableRandom r, LinearWave source, LinearWave oscillator, boolean fastMath)
     {
+        mFastMath = fastMath;
+        mAmplitude = r.nextDouble();
+        mAttenuation = 1.0 / r.nextDouble();
+        mSpinRate = r.nextDouble();
         mSource = source;
         mOscillator = oscillator;
     }
 
     public double value(double x, double y)
     {
-        double angle = Math.atan2(y, x) * mSpinRate;
+        double angle = (mFastMath ? FastMath.atan2(y, x) : Math.atan2(y, x)) * mSpinRate;
         double hypotenuse = Math.sqrt(x*x + y*y);
         double amp = mAmplitude * (1.0 - (1.0 / (mAttenuation * hypotenuse * hypotenuse + 1.0)));
         return mSource.value(hypotenuse + mOscillator.value(angle) * amp);
     }
+
+    public void value(double[] x, double[] y, double[] out, int n)
+    {
+        BlockScratch scratch = BlockScratch.get();
+        int mark = scratch.mark();
+        double[] angle = scratch.take(n);
+        double[] wave = scratch.take(n);
+        for (int i = 0; i < n; i++)
+        {
+            angle[i] = (mFastMath ? FastMath.atan2(y[i], x[i]) : Math.atan2(y[i], x[i])) * mSpinRate;
+        }
+        mOscillator.value(angle, wave, n);
+        for (int i = 0; i < n; i++)
+        {
+            double hypotenuse = Math.sqrt(x[i]*x[i] + y[i]*y[i]);
+            double amp = mAmplitude * (1.0 - (1.0 / (mAttenuation * hypotenuse * hypotenuse + 1.0)));
+            angle[i] = hypotenuse + wave[i] * amp;
+        }
+        mSource.value(angle, out, n);
+        scratch.reset(mark);
+    }
 }
 
 class Spinflake implements PlanarWave
 {
-	RandomSingleton r = RandomSingleton.getInstance();
-    double mAmplitude = Math.pow(r.nextDouble(), 4.0) + 0.05;
-    double mRadius = Math.pow(r.nextDouble(), 3.0) + 1.0;
-    double mSharpness = r.nextDouble() * 10.0;
-    double mSignflip = (r.nextDouble()) >= 0.5 ? 1.0 : -1.0;
+    double mAmplitude;
+    double mRadius;
+    double mSharpness;
+    double mSignflip;
+    boolean mFastMath;
     LinearWave mSource;
 
-    Spinflake(LinearWave source)
+    Spinflake(SplittableRandom r, LinearWave source, boolean fastMath)
     {
+        mFastMath = fastMath;
+        mAmplitude = Math.pow(r.nextDouble(), 4.0) + 0.05;
+        mRadius = Math.pow(r.nextDouble(), 3.0) + 1.0;
+        mSharpness = r.nextDouble() * 10.0;
+        mSignflip = (r.nextDouble()) >= 0.5 ? 1.0 : -1.0;
         mSource = source;
     }
 
@@ -419,12 +994,13 @@ class Spinflake implements PlanarWave
     {
         double value;
         double hypotenuse = Math.sqrt(x*x + y*y);
-        double angle = Math.atan2(y,x);
+        double angle = mFastMath ? FastMath.atan2(y, x) : Math.atan2(y,x);
         hypotenuse = hypotenuse + mSource.value(angle) * mAmplitude;
         if (hypotenuse < 0) hypotenuse = 0;
         if (hypotenuse > mRadius)
         {
-            value = Math.atan(hypotenuse - mRadius) / (Math.PI/2.0);
+            value = (mFastMath ? FastMath.atan(hypotenuse - mRadius) :
+                    Math.atan(hypotenuse - mRadius)) / (Math.PI/2.0);
         }
         else
         {
@@ -432,7 +1008,37 @@ class Spinflake implements PlanarWave
         }
         return mSignflip * ((value * 2.0) - 1.0);
     }
-}
+
+    public void value(double[] x, double[] y, double[] out, int n)
+    {
+        BlockScratch scratch = BlockScratch.get();
+        int mark = scratch.mark();
+        double[] angle = scratch.take(n);
+        for (int i = 0; i < n; i++)
+        {
+            angle[i] = mFastMath ? FastMath.atan2(y[i], x[i]) : Math.atan2(y[i], x[i]);
+        }
+        mSource.value(angle, out, n);
+        for (int i = 0; i < n; i++)
+        {
+            double value;
+            double hypotenuse = Math.sqrt(x[i]*x[i] + y[i]*y[i]);
+            hypotenuse = hypotenuse + out[i] * mAmplitude;
+            if (hypotenuse < 0) hypotenuse = 0;
+            if (hypotenuse > mRadius)
+            {
+                value = (mFastMath ? FastMath.atan(hypotenuse - mRadius) :
+                        Math.atan(hypotenuse - mRadius)) / (Math.PI/2.0);
+            }
+            else
+            {
+                value = 1.0 - Math.pow(hypotenuse / mRadius, mSharpness);
+            }
+            out[i] = mSignflip * ((value * 2.0) - 1.0);
+        }
+        scratch.reset(mark);
+    }
+}
 
 class InvertPlane implements  PlanarWave
 {
@@ -447,17 +1053,26 @@ class InvertPlane implements  PlanarWave
     {
         return -mSource.value(x, y);
     }
+
+    public void value(double[] x, double[] y, double[] out, int n)
+    {
+        mSource.value(x, y, out, n);
+        for (int i = 0; i < n; i++)
+        {
+            out[i] = -out[i];
+        }
+    }
 }	
 
 class MinimaxPlanar implements  PlanarWave
 {
-	RandomSingleton r = RandomSingleton.getInstance();
-	boolean mMin = r.nextDouble() >= 0.5;
+    boolean mMin;
     PlanarWave mASrc;
     PlanarWave mBSrc;
     
-    MinimaxPlanar(PlanarWave a, PlanarWave b)
+    MinimaxPlanar(SplittableRandom r, PlanarWave a, PlanarWave b)
     {
+        mMin = r.nextDouble() >= 0.5;
         mASrc = a;
         mBSrc = b;
     }
@@ -473,18 +1088,43 @@ class MinimaxPlanar implements  PlanarWave
             return Math.max(mASrc.value(x,y), mBSrc.value(x,y));
         }
     }
+
+    public void value(double[] x, double[] y, double[] out, int n)
+    {
+        BlockScratch scratch = BlockScratch.get();
+        int mark = scratch.mark();
+        double[] b = scratch.take(n);
+        mASrc.value(x, y, out, n);
+        mBSrc.value(x, y, b, n);
+        if (mMin)
+        {
+            for (int i = 0; i < n; i++)
+            {
+                out[i] = Math.min(out[i], b[i]);
+            }
+        }
+        else
+        {
+            for (int i = 0; i < n; i++)
+            {
+                out[i] = Math.max(out[i], b[i]);
+            }
+        }
+        scratch.reset(mark);
+    }
 }
 
 class MixPlanar implements  PlanarWave
 {
-	RandomSingleton r = RandomSingleton.getInstance();
-    double mABias = r.nextDouble();
-    double mBBias = 1.0 - mABias;
+    double mABias;
+    double mBBias;
     PlanarWave mASrc;
     PlanarWave mBSrc;
 
-    MixPlanar(PlanarWave a, PlanarWave b)
+    MixPlanar(SplittableRandom r, PlanarWave a, PlanarWave b)
     {
+        mABias = r.nextDouble();
+        mBBias = 1.0 - mABias;
         mASrc = a;
         mBSrc = b;
     }
@@ -493,19 +1133,35 @@ class MixPlanar implements  PlanarWave
     {
         return mASrc.value(x,y) * mABias + mBSrc.value(x,y) * mBBias;
     }
+
+    public void value(double[] x, double[] y, double[] out, int n)
+    {
+        BlockScratch scratch = BlockScratch.get();
+        int mark = scratch.mark();
+        double[] b = scratch.take(n);
+        mASrc.value(x, y, out, n);
+        mBSrc.value(x, y, b, n);
+        for (int i = 0; i < n; i++)
+        {
+            out[i] = out[i] * mABias + b[i] * mBBias;
+        }
+        scratch.reset(mark);
+    }
 }
 
 class WarpPlane implements  PlanarWave
 {
-	 RandomSingleton r = RandomSingleton.getInstance();
-    double mAcceleration = r.nextDouble();
-    double mAmplitude = r.nextDouble();
-    double mAttenuation = 1.0 / Math.pow(r.nextDouble(), 2.0);
+    double mAcceleration;
+    double mAmplitude;
+    double mAttenuation;
     LinearWave mModulator;
     PlanarWave mSource;
 
-    WarpPlane(PlanarWave source, LinearWave modulator)
+    WarpPlane(SplittableRandom r, PlanarWave source, LinearWave modulator)
     {
+        mAcceleration = r.nextDouble();
+        mAmplitude = r.nextDouble();
+        mAttenuation = 1.0 / Math.pow(r.nextDouble(), 2.0);
         mSource = source;
         mModulator = modulator;
     }
@@ -516,16 +1172,36 @@ class WarpPlane implements  PlanarWave
         y = y + mModulator.value(x * mAcceleration) * amp;
         return mSource.value(x, y);
     }
+
+    public void value(double[] x, double[] y, double[] out, int n)
+    {
+        BlockScratch scratch = BlockScratch.get();
+        int mark = scratch.mark();
+        double[] t = scratch.take(n);
+        double[] wave = scratch.take(n);
+        for (int i = 0; i < n; i++)
+        {
+            t[i] = x[i] * mAcceleration;
+        }
+        mModulator.value(t, wave, n);
+        for (int i = 0; i < n; i++)
+        {
+            double amp = mAmplitude / (mAttenuation * y[i] * y[i] + 1.0);
+            t[i] = y[i] + wave[i] * amp;
+        }
+        mSource.value(x, t, out, n);
+        scratch.reset(mark);
+    }
 }	
 
 class Reflector implements  PlanarWave
 {
-	RandomSingleton r = RandomSingleton.getInstance();
-    int mMode = r.nextInt(3);
+    int mMode;
     PlanarWave mSource;
 
-    Reflector(PlanarWave source)
+    Reflector(SplittableRandom r, PlanarWave source)
     {
+        mMode = r.nextInt(3);
         mSource = source;
     }
 
@@ -547,16 +1223,42 @@ class Reflector implements  PlanarWave
         }
         return mSource.value(Math.abs(x), ty);
     }
+
+    public void value(double[] x, double[] y, double[] out, int n)
+    {
+        BlockScratch scratch = BlockScratch.get();
+        int mark = scratch.mark();
+        double[] tx = scratch.take(n);
+        double[] ty = scratch.take(n);
+        for (int i = 0; i < n; i++)
+        {
+            tx[i] = Math.abs(x[i]);
+            switch (mMode)
+            {
+                case 0:
+                    ty[i] = (x[i] < 0) ? -y[i] : y[i];
+                    break;
+                case 1:
+                    ty[i] = Math.abs(y[i]);
+                    break;
+                default:
+                    ty[i] = y[i];
+                    break;
+            }
+        }
+        mSource.value(tx, ty, out, n);
+        scratch.reset(mark);
+    }
 }
 
 class GammaPlanar implements  PlanarWave
 {
-	RandomSingleton r = RandomSingleton.getInstance();
-    double mExp = 1.0 / (r.nextDouble() * 2.0);
+    double mExp;
     PlanarWave mSource;
 
-    GammaPlanar(PlanarWave source)
+    GammaPlanar(SplittableRandom r, PlanarWave source)
     {
+        mExp = 1.0 / (r.nextDouble() * 2.0);
         mSource = source;
     }
 
@@ -567,6 +1269,17 @@ class GammaPlanar implements  PlanarWave
         cpf = Math.pow(cpf, mExp);
         return cpf * 2.0 + - 1.0;
     }
+
+    public void value(double[] x, double[] y, double[] out, int n)
+    {
+        mSource.value(x, y, out, n);
+        for (int i = 0; i < n; i++)
+        {
+            double cpf = (out[i] + 1.0) / 2.0;
+            cpf = Math.pow(cpf, mExp);
+            out[i] = cpf * 2.0 + - 1.0;
+        }
+    }
 }
 
 class MultiplyPlanar implements  PlanarWave
@@ -584,17 +1297,32 @@ class MultiplyPlanar implements  PlanarWave
     {
         return mASrc.value(x, y) * mBSrc.value(x, y);
     }
+
+    public void value(double[] x, double[] y, double[] out, int n)
+    {
+        BlockScratch scratch = BlockScratch.get();
+        int mark = scratch.mark();
+        double[] b = scratch.take(n);
+        mASrc.value(x, y, out, n);
+        mBSrc.value(x, y, b, n);
+        for (int i = 0; i < n; i++)
+        {
+            out[i] = out[i] * b[i];
+        }
+        scratch.reset(mark);
+    }
 }
 
 class Quadratesselator implements  PlanarWave
 {
-	RandomSingleton r = RandomSingleton.getInstance();
-    double mHSize = (4.0 / r.nextDouble()) - 4.0;
-    double mVSize = (4.0 / r.nextDouble()) - 4.0;
+    double mHSize;
+    double mVSize;
     PlanarWave mSource;
 
-    Quadratesselator(PlanarWave source)
+    Quadratesselator(SplittableRandom r, PlanarWave source)
     {
+        mHSize = (4.0 / r.nextDouble()) - 4.0;
+        mVSize = (4.0 / r.nextDouble()) - 4.0;
         mSource = source;
     }
 
@@ -612,20 +1340,43 @@ class Quadratesselator implements  PlanarWave
         y = (y * 2.0) - 1.0;
         return mSource.value(x, y);
     }
+
+    public void value(double[] x, double[] y, double[] out, int n)
+    {
+        BlockScratch scratch = BlockScratch.get();
+        int mark = scratch.mark();
+        double[] tx = scratch.take(n);
+        double[] ty = scratch.take(n);
+        for (int i = 0; i < n; i++)
+        {
+            double u = (x[i] + 1.0) / 2.0;
+            double v = (y[i] + 1.0) / 2.0;
+            u = u * mHSize;
+            v = v * mVSize;
+            u = u - Math.floor(u);
+            v = v - Math.floor(v);
+            u = u / mHSize;
+            v = v / mVSize;
+            tx[i] = (u * 2.0) - 1.0;
+            ty[i] = (v * 2.0) - 1.0;
+        }
+        mSource.value(tx, ty, out, n);
+        scratch.reset(mark);
+    }
 }
 
 class Hexatesselator implements  PlanarWave
 {
-	RandomSingleton r = RandomSingleton.getInstance();
-    double mScale = 1.0 / Math.pow((r.nextDouble()*0.9)+0.1, 3.0);
+    double mScale;
     double cosThirdPi= 0.5;
     double sinThirdPi = 0.866025;
     double twiceSinThirdPi = 1.73205;
     double tanThirdPi = 1.73205;
     PlanarWave mSource;
 
-    Hexatesselator(PlanarWave source)
+    Hexatesselator(SplittableRandom r, PlanarWave source)
     {
+        mScale = 1.0 / Math.pow((r.nextDouble()*0.9)+0.1, 3.0);
         mSource = source;
     }
 
@@ -663,17 +1414,64 @@ class Hexatesselator implements  PlanarWave
         }
         return mSource.value(x + dx, y + dy);
     }
+
+    public void value(double[] x, double[] y, double[] out, int n)
+    {
+        BlockScratch scratch = BlockScratch.get();
+        int mark = scratch.mark();
+        double[] tx = scratch.take(n);
+        double[] ty = scratch.take(n);
+        for (int i = 0; i < n; i++)
+        {
+            double u = x[i] * mScale;
+            double v = y[i] * mScale;
+            u = (u + sinThirdPi) / twiceSinThirdPi;
+            u = u - Math.floor(u);
+            u = (u * twiceSinThirdPi) - sinThirdPi;
+            v = (v + 2.0) / 3.0;
+            v = v - Math.floor(v);
+            v = (v * 3.0) - 2.0;
+
+            double dx, dy;
+            if (v - cosThirdPi > Math.abs(u) / tanThirdPi)
+            {
+                dx = 0;
+                dy = -2 + cosThirdPi;
+            }
+            else if (-v -cosThirdPi> Math.abs(u) / tanThirdPi)
+            {
+                dx = 0;
+                dy = 1.0 + cosThirdPi;
+            }
+            else if (u < 0)
+            {
+                dx = sinThirdPi;
+                dy = 0;
+            }
+            else
+            {
+                dx = -sinThirdPi;
+                dy = 0;
+            }
+            tx[i] = u + dx;
+            ty[i] = v + dy;
+        }
+        mSource.value(tx, ty, out, n);
+        scratch.reset(mark);
+    }
 }
 
 class Rotawarp implements  PlanarWave
 {
-	RandomSingleton r = RandomSingleton.getInstance();
-    double mAmplitude = r.nextDouble() * 2.0;
+    double mAmplitude;
+    boolean mFastMath;
     PlanarWave mSource;
     LinearWave mWarp;
 
-    Rotawarp(PlanarWave source, LinearWave warp)
+    Rotawarp(SplittableRandom r, PlanarWave source, LinearWave warp, boolean fastMath)
     {
+        mFastMath = fastMath;
+        mAmplitude = r.nextDouble() * 2.0;
         mSource = source;
         mWarp = warp;
         if (mAmplitude > 1.0)
@@ -684,24 +1482,62 @@ class Rotawarp implements  PlanarWave
 
     public double value(double x, double y) 
     {
-        double angle = Math.atan2(y, x);
+        double angle = mFastMath ? FastMath.atan2(y, x) : Math.atan2(y, x);
         double hyp = Math.sqrt(x*x + y*y);
         angle = angle + mWarp.value(hyp) * mAmplitude;
+        if (mFastMath)
+        {
+            return mSource.value(hyp * FastMath.cos(angle), hyp * FastMath.sin(angle));
+        }
         return mSource.value(hyp * Math.cos(angle), hyp * Math.sin(angle));
     }
+
+    public void value(double[] x, double[] y, double[] out, int n)
+    {
+        BlockScratch scratch = BlockScratch.get();
+        int mark = scratch.mark();
+        double[] hyp = scratch.take(n);
+        double[] tx = scratch.take(n);
+        double[] ty = scratch.take(n);
+        for (int i = 0; i < n; i++)
+        {
+            hyp[i] = Math.sqrt(x[i]*x[i] + y[i]*y[i]);
+        }
+        mWarp.value(hyp, ty, n);
+        for (int i = 0; i < n; i++)
+        {
+            if (mFastMath)
+            {
+                double angle = FastMath.atan2(y[i], x[i]);
+                angle = angle + ty[i] * mAmplitude;
+                tx[i] = hyp[i] * FastMath.cos(angle);
+                ty[i] = hyp[i] * FastMath.sin(angle);
+            }
+            else
+            {
+                double angle = Math.atan2(y[i], x[i]);
+                angle = angle + ty[i] * mAmplitude;
+                tx[i] = hyp[i] * Math.cos(angle);
+                ty[i] = hyp[i] * Math.sin(angle);
+            }
+        }
+        mSource.value(tx, ty, out, n);
+        scratch.reset(mark);
+    }
 }
 
 class Mixmaster implements  PlanarWave
 {
     PlanarWave mSource;
-    RandomSingleton r = RandomSingleton.getInstance();
-    double mXOff = r.nextDouble() * 2.0 - 1.0;
-    double mYOff  = r.nextDouble() * 2.0 - 1.0;
+    double mXOff;
+    double mYOff;
     double mCosXFact, mSinXFact, mCosYFact, mSinYFact;   
 
-    Mixmaster(PlanarWave source)
+    Mixmaster(SplittableRandom r, PlanarWave source)
     {
         mSource = source;
+        mXOff = r.nextDouble() * 2.0 - 1.0;
+        mYOff  = r.nextDouble() * 2.0 - 1.0;
         double angle = r.nextDouble() * (Math.PI*2.0);
         double sinangle = Math.sin(angle);
         double cosangle = Math.cos(angle);
@@ -731,16 +1567,41 @@ class Mixmaster implements  PlanarWave
         double y_rot = x * mSinYFact + y * mCosYFact;
         return mSource.value(x_rot, y_rot);
     }
+
+    public void value(double[] x, double[] y, double[] out, int n)
+    {
+        BlockScratch scratch = BlockScratch.get();
+        int mark = scratch.mark();
+        double[] tx = scratch.take(n);
+        double[] ty = scratch.take(n);
+        for (int i = 0; i < n; i++)
+        {
+            double u = x[i] + mXOff;
+            double v = y[i] + mYOff;
+            tx[i] = u * mCosXFact - v * mSinXFact;
+            ty[i] = u * mSinYFact + v * mCosYFact;
+        }
+        mSource.value(tx, ty, out, n);
+        scratch.reset(mark);
+    }
 }
 
+// The gradient is baked into a ramp of RAMP_SIZE + 1 packed colours, so
+// colouring a sample is one array load. Samples whose blend weights share
+// their top bits share the colour from the middle of that step; against
+// blending each sample exactly, a channel is one level out for about 2% of
+// samples, and never more.
 class Gradientor implements  ImageLayer
 {
-	RandomSingleton r = RandomSingleton.getInstance();
+    static final int RAMP_SIZE = 1024;
+
     pixel mAVal;
     pixel mBVal;
     PlanarWave mSource;
+    // derived from mAVal and mBVal by initRamp, so not saved
+    transient int[] mRamp;
 
-    Gradientor(PlanarWave source,  StarfishPalette colours)
+    Gradientor(SplittableRandom r, PlanarWave source,  StarfishPalette colours)
     {
         mSource = source;
         // Pick two different colours from the palette. These will be
@@ -754,20 +1615,70 @@ class Gradientor implements  ImageLayer
         }
         while (bindex == aindex);
         mBVal = colours.colour[ bindex ];
+        initRamp();
+    }
+
+    // Call again after changing either colour.
+    void initRamp()
+    {
+        mRamp = ramp(mAVal, mBVal);
+    }
+
+    static int[] ramp(pixel a, pixel b)
+    {
+        int shift = 16 - Integer.numberOfTrailingZeros(RAMP_SIZE);
+        int[] ramp = new int[RAMP_SIZE + 1];
+        for (int k = 0; k <= RAMP_SIZE; k++)
+        {
+            int w = Math.min((k << shift) + (1 << (shift - 1)), PackedPixel.ONE);
+            ramp[k] = (PackedPixel.lerp(a.red, b.red, w) << 16)
+                    | (PackedPixel.lerp(a.green, b.green, w) << 8)
+                    | PackedPixel.lerp(a.blue, b.blue, w);
+        }
+        return ramp;
+    }
+
+    // The step of a wave value in [-1, 1], which is PackedPixel.weight of
+    // (wave + 1) / 2 cut to its top bits: scaling by a power of two is
+    // exact, and out of range values and NaN clamp the same way.
+    static int rampIndex(double wave)
+    {
+        int i = (int) ((wave + 1.0) * (RAMP_SIZE / 2));
+        if (i < 0) return 0;
+        if (i > RAMP_SIZE) return RAMP_SIZE;
+        return i;
     }
 
-    public pixel value(double x, double y) 
+    public int value(double x, double y) 
     {
-        double val = (mSource.value(x, y) + 1.0) / 2.0;
-        return new pixel((int) ((mBVal.red - mAVal.red) * val + mAVal.red),
-                			 (int) ((mBVal.green - mAVal.green) * val + mAVal.green),
-                			 (int) ((mBVal.blue - mAVal.blue) * val + mAVal.blue));
+        return mRamp[rampIndex(mSource.value(x, y))];
+    }
 
+    public void value(double[] x, double[] y, int[] out, int n)
+    {
+        BlockScratch scratch = BlockScratch.get();
+        int mark = scratch.mark();
+        double[] wave = scratch.take(n);
+        mSource.value(x, y, wave, n);
+        int[] ramp = mRamp;
+        for (int i = 0; i < n; i++)
+        {
+            out[i] = ramp[rampIndex(wave[i])];
+        }
+        scratch.reset(mark);
     }
 }
 
+// The mask is evaluated first, and a source is skipped wherever its
+// weight is too small to move any channel: a blend with a weight of at
+// most ONLY_A is exactly A, and one of at least ONLY_B is exactly B, since
+// 255 * 128 rounds away in the 16-bit fixed point. The block form gathers
+// the samples that need a source and evaluates it on those alone.
 class Compositor implements  ImageLayer
 {
+    static final int ONLY_A = 128;
+    static final int ONLY_B = PackedPixel.ONE - 128;
+
     ImageLayer mSrcA;
     ImageLayer mSrcB;
     PlanarWave mMask;
@@ -779,15 +1690,90 @@ class Compositor implements  ImageLayer
         mSrcB = b;
     }
 
-    public pixel value(double x, double y) 
+    static int weight(double mask)
+    {
+        return PackedPixel.weight((mask + 1.0) / 2.0);
+    }
+
+    public int value(double x, double y) 
+    {
+        int w = weight(mMask.value(x, y));
+        if (w <= ONLY_A)
+        {
+            return mSrcA.value(x, y);
+        }
+        if (w >= ONLY_B)
+        {
+            return mSrcB.value(x, y);
+        }
+        return PackedPixel.blend(mSrcA.value(x, y), mSrcB.value(x, y), w);
+    }
+
+    public void value(double[] x, double[] y, int[] out, int n)
+    {
+        BlockScratch scratch = BlockScratch.get();
+        int mark = scratch.mark();
+        int[] b = scratch.takeInts(n);
+        int[] w = scratch.takeInts(n);
+        double[] mask = scratch.take(n);
+        mMask.value(x, y, mask, n);
+        int needA = 0;
+        int needB = 0;
+        for (int i = 0; i < n; i++)
+        {
+            w[i] = weight(mask[i]);
+            if (w[i] < ONLY_B) needA++;
+            if (w[i] > ONLY_A) needB++;
+        }
+        evaluate(mSrcA, x, y, out, n, w, needA, true);
+        evaluate(mSrcB, x, y, b, n, w, needB, false);
+        for (int i = 0; i < n; i++)
+        {
+            if (w[i] <= ONLY_A) continue;
+            out[i] = (w[i] >= ONLY_B) ? b[i] : PackedPixel.blend(out[i], b[i], w[i]);
+        }
+        scratch.reset(mark);
+    }
+
+    // Fills out[i] from source for the count samples that need it, which
+    // are those with w[i] below ONLY_B for A and above ONLY_A for B.
+    static void evaluate(ImageLayer source, double[] x, double[] y, int[] out, int n,
+            int[] w, int count, boolean isA)
     {
-        pixel a = mSrcA.value(x, y);
-        pixel b = mSrcB.value(x, y);
-        double mask = mMask.value(x, y);
-        mask = (mask + 1.0) / 2.0;
-        return new pixel((int)((b.red - a.red) * mask + a.red),
-                			 (int)((b.green - a.green) * mask + a.green),
-                			 (int)((b.blue - a.blue) * mask + a.blue));
+        if (count == n)
+        {
+            source.value(x, y, out, n);
+            return;
+        }
+        if (count == 0)
+        {
+            return;
+        }
+        BlockScratch scratch = BlockScratch.get();
+        int mark = scratch.mark();
+        double[] sx = scratch.take(count);
+        double[] sy = scratch.take(count);
+        int[] sout = scratch.takeInts(count);
+        int k = 0;
+        for (int i = 0; i < n; i++)
+        {
+            if (isA ? w[i] < ONLY_B : w[i] > ONLY_A)
+            {
+                sx[k] = x[i];
+                sy[k] = y[i];
+                k++;
+            }
+        }
+        source.value(sx, sy, sout, count);
+        k = 0;
+        for (int i = 0; i < n; i++)
+        {
+            if (isA ? w[i] < ONLY_B : w[i] > ONLY_A)
+            {
+                out[i] = sout[k++];
+            }
+        }
+        scratch.reset(mark);
     }
 }
 
@@ -795,7 +1781,7 @@ class AntialiasImage implements  ImageLayer
 {
     double mDX;
     double mDY;
-    double mSamplesRecip;
+    int mSamplesShift;
     ImageLayer mSource;
     AAMode mMode;
 
@@ -805,35 +1791,79 @@ class AntialiasImage implements  ImageLayer
         mDX = 0.5/x;
         mDY = 0.5/y;
         mMode = mode;
-        mSamplesRecip = (mMode == AAMode.AAMODE_4X) ? 0.25 : 0.5;
+        mSamplesShift = (mMode == AAMode.AAMODE_4X) ? 2 : 1;
     }
 
-    public pixel value(double x, double y) 
+    public int value(double x, double y) 
     {
         int red, green, blue;
-        pixel oval = mSource.value(x, y);
-        red = oval.red;
-        green   = oval.green;
-        blue    = oval.blue;
+        int oval = mSource.value(x, y);
+        red = (oval >> 16) & 0xFF;
+        green   = (oval >> 8) & 0xFF;
+        blue    = oval & 0xFF;
         oval = mSource.value(x + mDX, y + mDY);
-        red = red + oval.red;
-        green   = green + oval.green;
-        blue    = blue + oval.blue;
+        red = red + ((oval >> 16) & 0xFF);
+        green   = green + ((oval >> 8) & 0xFF);
+        blue    = blue + (oval & 0xFF);
         if (mMode == AAMode.AAMODE_4X)
         {
             oval = mSource.value(x + mDX, y);
-            red = red + oval.red;
-            green   = green + oval.green;
-            blue    = blue + oval.blue;
+            red = red + ((oval >> 16) & 0xFF);
+            green   = green + ((oval >> 8) & 0xFF);
+            blue    = blue + (oval & 0xFF);
             oval = mSource.value(x, y + mDY);
-            red = red + oval.red;
-            green   = green + oval.green;
-            blue    = blue + oval.blue;
+            red = red + ((oval >> 16) & 0xFF);
+            green   = green + ((oval >> 8) & 0xFF);
+            blue    = blue + (oval & 0xFF);
+        }
+        red = red >> mSamplesShift;
+        green = green >> mSamplesShift;
+        blue = blue >> mSamplesShift;
+        return (red << 16) | (green << 8) | blue;
+    }
+
+    public void value(double[] x, double[] y, int[] out, int n)
+    {
+        BlockScratch scratch = BlockScratch.get();
+        int mark = scratch.mark();
+        double[] sx = scratch.take(n);
+        double[] sy = scratch.take(n);
+        int[] red = scratch.takeInts(n);
+        int[] green = scratch.takeInts(n);
+        int[] blue = scratch.takeInts(n);
+        mSource.value(x, y, out, n);
+        for (int i = 0; i < n; i++)
+        {
+            red[i] = (out[i] >> 16) & 0xFF;
+            green[i] = (out[i] >> 8) & 0xFF;
+            blue[i] = out[i] & 0xFF;
+            sx[i] = x[i] + mDX;
+            sy[i] = y[i] + mDY;
+        }
+        addSamples(sx, sy, out, red, green, blue, n);
+        if (mMode == AAMode.AAMODE_4X)
+        {
+            addSamples(sx, y, out, red, green, blue, n);
+            addSamples(x, sy, out, red, green, blue, n);
+        }
+        for (int i = 0; i < n; i++)
+        {
+            out[i] = ((red[i] >> mSamplesShift) << 16)
+                    | ((green[i] >> mSamplesShift) << 8)
+                    | (blue[i] >> mSamplesShift);
+        }
+        scratch.reset(mark);
+    }
+
+    void addSamples(double[] x, double[] y, int[] sample, int[] red, int[] green, int[] blue, int n)
+    {
+        mSource.value(x, y, sample, n);
+        for (int i = 0; i < n; i++)
+        {
+            red[i] += (sample[i] >> 16) & 0xFF;
+            green[i] += (sample[i] >> 8) & 0xFF;
+            blue[i] += sample[i] & 0xFF;
         }
-        oval.red		= (char) (red * mSamplesRecip);
-        oval.green	= (char) (green * mSamplesRecip);
-        oval.blue	= (char) (blue * mSamplesRecip);
-        return oval;
     }
 }
 
@@ -841,38 +1871,197 @@ class StarfishEngine
 {
     int mWidth;
     int mHeight;
-    boolean mWrapEdges;
+    WrapMode mWrapMode;
+    long mSeed;
+    boolean mFastMath;
+    AAMode mAAMode;
+    SimplifyMode mSimplifyMode = SimplifyMode.SIMPLIFY_NONE;
+    // mTree is the generated tree; mSource is what is rendered, which may
+    // be mTree wrapped for anti-aliasing or compiled.
+    ImageLayer mTree;
     ImageLayer mSource;
+    // set while the render is being profiled
+    Profiler mProfiler;
+
+    // Adaptive anti-aliasing: the number of samples taken in pixels that
+    // differ from a neighbour by more than EDGE_CONTRAST, or 0, and their
+    // offsets from the pixel, as a Hammersley set over one pixel.
+    static final int EDGE_CONTRAST = 16;
+    int mEdgeSamples;
+    double[] mEdgeX;
+    double[] mEdgeY;
 
     StarfishEngine(int width, int height,  StarfishPalette palette, 
             boolean wrapEdges, int complexity, AAMode aamode)
     {
+        this(width, height, palette, wrapEdges, complexity, aamode, newSeed());
+    }
+
+    // The tree depends only on the seed, palette, wrap setting and
+    // complexity, never on the output size, so the same seed can be
+    // rendered again at any resolution. Each engine draws from its own
+    // generator, so engines can be built on any number of threads at once.
+    StarfishEngine(int width, int height,  StarfishPalette palette, 
+            boolean wrapEdges, int complexity, AAMode aamode, long seed)
+    {
+        this(width, height, palette, wrapEdges, complexity, aamode, seed, false);
+    }
+
+    // fastMath builds the same tree but lets its trig-heavy nodes use the
+    // FastMath approximations.
+    StarfishEngine(int width, int height,  StarfishPalette palette, 
+            boolean wrapEdges, int complexity, AAMode aamode, long seed, boolean fastMath)
+    {
+        this(width, height, palette, wrapEdges ? WrapMode.WRAP_BLEND : WrapMode.WRAP_NONE,
+                complexity, aamode, seed, fastMath);
+    }
+
+    StarfishEngine(int width, int height,  StarfishPalette palette, 
+            WrapMode wrapMode, int complexity, AAMode aamode, long seed, boolean fastMath)
+    {
+        mFastMath = fastMath;
         mWidth = width;
         mHeight = height;
-        mWrapEdges = wrapEdges;
+        mWrapMode = wrapMode;
+        mSeed = seed;
 
-        if (mWrapEdges)
+        // The blend evaluates the tree four times per pixel; the mirror
+        // needs no such allowance.
+        if (mWrapMode == WrapMode.WRAP_BLEND)
         {
             complexity /= 2;
         }
 
-        mSource = newImageLayer(palette, complexity);
-        if (aamode != AAMode.AAMODE_NONE)
+        Profiler.GenerateEvent event = new Profiler.GenerateEvent();
+        event.begin();
+        mTree = newImageLayer(new SplittableRandom(seed), palette, complexity);
+        if (event.shouldCommit())
+        {
+            event.seed = seed;
+            event.complexity = complexity;
+            event.nodes = TreeNodes.all(mTree).size();
+            event.commit();
+        }
+        initSource(aamode);
+    }
+
+    // Renders a tree built earlier, for instance one read back by TreeCodec,
+    // at a new size.
+    StarfishEngine(int width, int height, ImageLayer tree,
+            WrapMode wrapMode, AAMode aamode, long seed, boolean fastMath)
+    {
+        mFastMath = fastMath;
+        mWidth = width;
+        mHeight = height;
+        mWrapMode = wrapMode;
+        mSeed = seed;
+        mTree = tree;
+        initSource(aamode);
+    }
+
+    // the same engine rendering source instead
+    private StarfishEngine(StarfishEngine engine, ImageLayer source)
+    {
+        mWidth = engine.mWidth;
+        mHeight = engine.mHeight;
+        mWrapMode = engine.mWrapMode;
+        mSeed = engine.mSeed;
+        mFastMath = engine.mFastMath;
+        mAAMode = engine.mAAMode;
+        mSimplifyMode = engine.mSimplifyMode;
+        mTree = engine.mTree;
+        mSource = source;
+        mProfiler = engine.mProfiler;
+        mEdgeSamples = engine.mEdgeSamples;
+        mEdgeX = engine.mEdgeX;
+        mEdgeY = engine.mEdgeY;
+    }
+
+    private void initSource(AAMode aamode)
+    {
+        mAAMode = aamode;
+        initSource();
+        if (aamode == AAMode.AAMODE_ADAPTIVE_4X) mEdgeSamples = 4;
+        else if (aamode == AAMode.AAMODE_ADAPTIVE_8X) mEdgeSamples = 8;
+        else if (aamode == AAMode.AAMODE_ADAPTIVE_16X) mEdgeSamples = 16;
+
+        mEdgeX = new double[mEdgeSamples];
+        mEdgeY = new double[mEdgeSamples];
+        for (int k = 0; k < mEdgeSamples; k++)
+        {
+            double radicalInverse = (Integer.reverse(k) & 0xFFFFFFFFL) / 4294967296.0;
+            mEdgeX[k] = (k + 0.5) / mEdgeSamples - 0.5;
+            mEdgeY[k] = radicalInverse + 0.5 / mEdgeSamples - 0.5;
+        }
+    }
+
+    // Rebuilds mSource from mTree, dropping any compiled form.
+    void initSource()
+    {
+        mSource = mTree;
+        if (mSimplifyMode != SimplifyMode.SIMPLIFY_NONE)
+        {
+            mSource = Simplifier.simplify(TreeCodec.copy(mTree), mSimplifyMode);
+        }
+        if (mProfiler != null)
+        {
+            if (mSource == mTree)
+            {
+                mSource = TreeCodec.copy(mTree);
+            }
+            mSource = mProfiler.attach(mSource);
+        }
+        if (mAAMode == AAMode.AAMODE_2X || mAAMode == AAMode.AAMODE_4X)
         {
-            mSource = new AntialiasImage(mSource, width, height, aamode);
+            mSource = new AntialiasImage(mSource, mWidth, mHeight, mAAMode);
         }
     }
 
-    LinearWave newLinearWave(int complexity)
+    // Renders a simplified copy of the tree; mTree, which is what gets
+    // saved and animated, keeps the form it was generated in. Call before
+    // compile().
+    void simplify(SimplifyMode mode)
+    {
+        mSimplifyMode = mode;
+        initSource();
+    }
+
+    // Swaps the interpreted tree for one specialized class built by
+    // WaveCompiler. Output is unchanged.
+    void compile()
+    {
+        mSource = WaveCompiler.compile(mSource);
+    }
+
+    // Renders a copy of the tree with every node timed by profiler, which
+    // can be shared by several engines. Instead of compile(); the output is
+    // unchanged but slower.
+    void profile(Profiler profiler)
+    {
+        mProfiler = profiler;
+        initSource();
+    }
+
+    static long newSeed()
+    {
+        return new SplittableRandom().nextLong();
+    }
+
+    // the seed tried after seed when a tree is turned down
+    static long nextSeed(long seed)
+    {
+        return new SplittableRandom(seed).nextLong();
+    }
+
+    LinearWave newLinearWave(SplittableRandom r, int complexity)
     {
-    	RandomSingleton r = RandomSingleton.getInstance();
         LinearWave out = null;
         int selector = r.nextInt(3);
         switch (selector)
         {
-            case 0: out = new Coswave(); break;
-            case 1: out = new Sawtooth(); break;
-            case 2: out = new Ess(); break;
+            case 0: out = new Coswave(r, mFastMath); break;
+            case 1: out = new Sawtooth(r); break;
+            case 2: out = new Ess(r); break;
         }
         while (complexity > 0)
         {
@@ -887,30 +2076,30 @@ class StarfishEngine
                     complexity--;
                     break;
                 case 2: 
-                    out = new GammaLinear(out);
+                    out = new GammaLinear(r, out);
                     complexity--;
                     break;
                 case 3: 
                     if (complexity >= 2)
                     {
-                        out = new InsertWavePeaks(out);
+                        out = new InsertWavePeaks(r, out);
                         complexity -= 2;
                     }
                     break;
                 case 4: 
-                    out = new Modulator(out, newLinearWave(complexity));
+                    out = new Modulator(out, newLinearWave(r, complexity));
                     complexity = 0;
                     break;
                 case 5: 
-                    out = new MixLinear(out, newLinearWave(complexity));
+                    out = new MixLinear(r, out, newLinearWave(r, complexity));
                     complexity = 0;
                     break;
                 case 6: 
-                    out = new MinimaxLinear(out, newLinearWave(complexity));
+                    out = new MinimaxLinear(r, out, newLinearWave(r, complexity));
                     complexity = 0;
                     break;
                 case 7: 
-                    out = new MultiplyLinear(out, newLinearWave(complexity));
+                    out = new MultiplyLinear(out, newLinearWave(r, complexity));
                     complexity = 0;
                     break;
             }
@@ -918,9 +2107,8 @@ class StarfishEngine
         return out;
     }
 
-    PlanarWave newPlanarWave(int complexity)
+    PlanarWave newPlanarWave(SplittableRandom r, int complexity)
     {
-    	RandomSingleton r = RandomSingleton.getInstance();
         PlanarWave out = null;
         int selector;
 
@@ -932,19 +2120,19 @@ class StarfishEngine
         switch (selector)
         {
             case 0: 
-            		out = new Pebbledrop(newLinearWave(sourceComplexity)); 
+            		out = new Pebbledrop(newLinearWave(r, sourceComplexity)); 
             		break;
             case 1: 
-            		out = new Curtain(newLinearWave(sourceComplexity)); 
+            		out = new Curtain(newLinearWave(r, sourceComplexity)); 
             		break;
             case 2: 
-            		out = new Zigzag(newLinearWave(sourceComplexity / 2), newLinearWave(sourceComplexity / 2)); 
+            		out = new Zigzag(r, newLinearWave(r, sourceComplexity / 2), newLinearWave(r, sourceComplexity / 2)); 
             		break;
             case 3: 
-            		out = new Starfish2(newLinearWave(sourceComplexity / 2), newLinearWave(sourceComplexity / 2)); 
+            		out = new Starfish2(r, newLinearWave(r, sourceComplexity / 2), newLinearWave(r, sourceComplexity / 2), mFastMath); 
             		break;
             case 4: 
-            		out = new Spinflake(newLinearWave(sourceComplexity)); 
+            		out = new Spinflake(r, newLinearWave(r, sourceComplexity), mFastMath); 
             		break;
         }
         if (r.nextDouble() >= 0.5)
@@ -960,16 +2148,16 @@ class StarfishEngine
                     modifierComplexity = modifierComplexity - 1;
                     break;
                 case 1:
-                    out = new MinimaxPlanar(out, newPlanarWave(modifierComplexity));
+                    out = new MinimaxPlanar(r, out, newPlanarWave(r, modifierComplexity));
                     modifierComplexity = 0;
                     break;
                 case 2:
-                    out = new MixPlanar(out, newPlanarWave(modifierComplexity));
+                    out = new MixPlanar(r, out, newPlanarWave(r, modifierComplexity));
                     modifierComplexity = 0;
                     break;
                 case 3:
                     modifierComplexity = modifierComplexity / 2;
-                    out = new WarpPlane(new Mixmaster(out), newLinearWave(modifierComplexity));
+                    out = new WarpPlane(r, new Mixmaster(r, out), newLinearWave(r, modifierComplexity));
                     if (modifierComplexity > 0)
                     {
                         modifierComplexity = modifierComplexity - 1;
@@ -977,124 +2165,5891 @@ class StarfishEngine
                     break;
                 case 4:
                     modifierComplexity = modifierComplexity / 2;
-                    out = new Reflector(new Mixmaster(out));
+                    out = new Reflector(r, new Mixmaster(r, out));
                     break;
                 case 5:
                     modifierComplexity = modifierComplexity - 1;
-                    out = new GammaPlanar(out);
+                    out = new GammaPlanar(r, out);
                     break;
                 case 6:
-                    out = new MultiplyPlanar(out, newPlanarWave(modifierComplexity));
+                    out = new MultiplyPlanar(out, newPlanarWave(r, modifierComplexity));
                     modifierComplexity = 0;
                     break;
                 case 7:
-                    out = new Quadratesselator(out);
+                    out = new Quadratesselator(r, out);
                     modifierComplexity = modifierComplexity / 2;
                     break;
                 case 8:
-                    out = new Hexatesselator(out);
+                    out = new Hexatesselator(r, out);
                     modifierComplexity = modifierComplexity / 2;
                     break;
                 case 9:
                     subwaveComplexity = (int) (modifierComplexity * r.nextDouble());
-                    out = new Rotawarp(new Mixmaster(out), newLinearWave(subwaveComplexity));
+                    out = new Rotawarp(r, new Mixmaster(r, out), newLinearWave(r, subwaveComplexity), mFastMath);
                     modifierComplexity = modifierComplexity - subwaveComplexity;
                     break;
             }
         }
-        out = new Mixmaster(out);
+        // Every planar wave ends in a Mixmaster with its own offset and
+        // rotation, so no two polar nodes ever see the same coordinates and
+        // there is nothing to share between them; each computes its sqrt
+        // and atan2 once per sample.
+        out = new Mixmaster(r, out);
         return out;
     }
 
-    ImageLayer newImageLayer( StarfishPalette colours, int complexity)
+    ImageLayer newImageLayer(SplittableRandom r, StarfishPalette colours, int complexity)
     {
-        RandomSingleton r = RandomSingleton.getInstance();
-
         if (Math.pow(r.nextDouble(), 4.0) > 1.0 / complexity)
         {
-            PlanarWave mask = newPlanarWave(complexity / 4);
+            PlanarWave mask = newPlanarWave(r, complexity / 4);
             complexity -= (complexity / 4);
-            ImageLayer a = newImageLayer(colours, complexity / 2);
-            ImageLayer b = newImageLayer(colours, complexity / 2);
+            ImageLayer a = newImageLayer(r, colours, complexity / 2);
+            ImageLayer b = newImageLayer(r, colours, complexity / 2);
             return new Compositor(a, mask, b);
         }
         else
         {
-            return new Gradientor(newPlanarWave(complexity), colours);
+            return new Gradientor(r, newPlanarWave(r, complexity), colours);
         }
     }	
 
-    pixel getPixel(int x, int y)
+    // Folds pixel i of a span of the given size into [-0.5, 0.5]: the
+    // result steps by the same 2/size per pixel as the unwrapped
+    // coordinate, but turns back at the centre, so the last pixel of the
+    // span runs smoothly into the first.
+    static double mirror(double i, int size)
+    {
+        return Math.abs(((i * 2.0) / (double)size) - 1.0) - 0.5;
+    }
+
+    // Returns the colour of pixel (x, y) packed as 0xRRGGBB.
+    int getPixel(int x, int y)
     {
-        pixel out = new pixel(0,0,0);
+        if (mEdgeSamples > 0)
+        {
+            BlockScratch scratch = BlockScratch.get();
+            int mark = scratch.mark();
+            int[] out = scratch.takeInts(1);
+            getBlock(x, y, 1, 1, out, 0, 1);
+            scratch.reset(mark);
+            return out[0];
+        }
+
         double fx = (((double)x * 2.0) / (double)mWidth) - 1.0;
         double fy = (((double)y * 2.0) / (double)mHeight) - 1.0;
 
-        if (mWrapEdges)
-        {
-            double xbackmask = ((double)x) / (double)mWidth;
-            double xmask = 1.0 - xbackmask;
-            pixel topleft = mSource.value(fx + 1.0, fy);
-            pixel topright = mSource.value(fx - 1.0, fy);
-            pixel bottomleft = mSource.value(fx + 1.0, fy - 2.0);
-            pixel bottomright = mSource.value(fx - 1.0, fy - 2.0);
-            pixel top = new pixel(0,0,0); 
-            top.red   = (int)((topleft.red * xmask) + (topright.red * xbackmask)) & 0xFF;
-            top.green = (int)((topleft.green * xmask) + (topright.green * xbackmask)) & 0xFF;
-            top.blue  = (int)((topleft.blue * xmask) + (topright.blue * xbackmask)) & 0xFF;
-            pixel bottom = new pixel(0,0,0);
-            bottom.red = (int)((bottomleft.red * xmask) + (bottomright.red * xbackmask)) & 0xFF;
-            bottom.green = (int)((bottomleft.green * xmask) + (bottomright.green * xbackmask)) & 0xFF;
-            bottom.blue = (int)((bottomleft.blue * xmask) + (bottomright.blue * xbackmask)) & 0xFF;
-            double ybackmask = ((double)y) /(double)(mHeight);
-            double ymask = 1.0 - ybackmask;
-            out.red   = (int)((top.red * ymask) + (bottom.red * ybackmask)) & 0xFF;
-            out.green = (int)((top.green * ymask) + (bottom.green * ybackmask)) & 0xFF;
-            out.blue  = (int)((top.blue * ymask) + (bottom.blue * ybackmask)) & 0xFF;
+        if (mWrapMode == WrapMode.WRAP_MIRROR)
+        {
+            return mSource.value(mirror(x, mWidth), mirror(y, mHeight));
+        }
+        else if (mWrapMode == WrapMode.WRAP_BLEND)
+        {
+            int xbackmask = (int) (((long) x << 16) / mWidth);
+            int ybackmask = (int) (((long) y << 16) / mHeight);
+            int topleft = mSource.value(fx + 1.0, fy);
+            int topright = mSource.value(fx - 1.0, fy);
+            int bottomleft = mSource.value(fx + 1.0, fy - 2.0);
+            int bottomright = mSource.value(fx - 1.0, fy - 2.0);
+            int top = PackedPixel.blend(topleft, topright, xbackmask);
+            int bottom = PackedPixel.blend(bottomleft, bottomright, xbackmask);
+            return PackedPixel.blend(top, bottom, ybackmask);
         }
         else
         {
-            out = mSource.value(fx, fy);
+            return mSource.value(fx, fy);
         }
-        return out;
     }
 
 
-    static StarfishPalette initRandomPalette(StarfishPalette p)
+    // Fills out[offset..offset+n) with pixels (x, y) .. (x+n-1, y), exactly
+    // as n calls to getPixel would, but walks the tree once for the row.
+    void getRow(int x, int y, int n, int[] out, int offset)
     {
-        RandomSingleton r = RandomSingleton.getInstance();
-
-        p.colourCount = r.nextInt(255) + 2;
-
-        p.colour[0] = new pixel(0,0,0);
-        p.colour[1] = new pixel(255,255,255);
-
-        for (int i = 2; i < p.colourCount; i++)
+        if (mEdgeSamples > 0)
         {
-            p.colour[i] = new pixel(r.nextInt(256),r.nextInt(256),r.nextInt(256));
+            getBlock(x, y, n, 1, out, offset, n);
+        }
+        else
+        {
+            sampleRow(x, y, n, out, offset);
         }
-        return p;
     }
-}
-
-class DisplayWindow extends JDialog
-{
-    private JPanel panel = new JPanel();
-    private JFrame mainFrame = new JFrame();
-    private JButton saveButton = new JButton("Save");
-    private BufferedImage bi;
-    private Thread runThread;
 
-    DisplayWindow(final StarfishEngine sfe, final int width, final int height)
+    // Fills the w x h block of pixels from (x, y) into out, starting at
+    // offset with rows stride apart, exactly as getPixel would. In the
+    // adaptive modes the block and a one pixel border are sampled once per
+    // pixel; pixels that differ from a neighbour by more than EDGE_CONTRAST
+    // in any channel are then replaced by the mean of mEdgeSamples samples
+    // spread over the pixel. A pixel depends only on its neighbours, so the
+    // image is the same however it is cut into blocks.
+    void getBlock(int x, int y, int w, int h, int[] out, int offset, int stride)
     {
-        saveButton.addActionListener(new ActionListener()
-        {			
-            public void actionPerformed(ActionEvent evt)
+        if (mEdgeSamples == 0)
+        {
+            for (int j = 0; j < h; j++)
             {
-                JFileChooser fc = new JFileChooser();
-                PathSingleton.getInstance();
-                File f = PathSingleton.getPath();
-                if (!f.toString().equals("")) fc.setCurrentDirectory(f);
+                sampleRow(x, y + j, w, out, offset + j * stride);
+            }
+            return;
+        }
+        BlockScratch scratch = BlockScratch.get();
+        int mark = scratch.mark();
+        try
+        {
+            int bw = w + 2;
+            int[] base = scratch.takeInts(bw * (h + 2));
+            for (int j = 0; j < h + 2; j++)
+            {
+                int row = neighbour(y + j - 1, mHeight);
+                sampleRow(neighbour(x - 1, mWidth), row, 1, base, j * bw);
+                sampleRow(x, row, w, base, j * bw + 1);
+                sampleRow(neighbour(x + w, mWidth), row, 1, base, j * bw + w + 1);
+            }
+            refine(x, y, w, h, base, out, offset, stride);
+        }
+        finally
+        {
+            scratch.reset(mark);
+        }
+    }
+
+    // An engine that renders the w x h block of pixels from (x, y), and its
+    // one pixel border, exactly as this one does, through a copy of the
+    // tree with whatever Bounds proves cannot show there cut away. This
+    // engine if nothing can be, as for a compiled or profiled tree.
+    StarfishEngine region(int x, int y, int w, int h)
+    {
+        int border = (mEdgeSamples > 0) ? 1 : 0;
+        double[] fx = new double[2];
+        double[] fy = new double[2];
+        span(x - border, x + w - 1 + border, mWidth, fx);
+        span(y - border, y + h - 1 + border, mHeight, fy);
+        ImageLayer source;
+        if (mWrapMode == WrapMode.WRAP_BLEND)
+        {
+            // the hull of the four copies evaluate blends
+            source = Bounds.prune(mSource, fx[0] - 1.0, fx[1] + 1.0, fy[0] - 2.0, fy[1]);
+        }
+        else
+        {
+            source = Bounds.prune(mSource, fx[0], fx[1], fy[0], fy[1]);
+        }
+        return (source == mSource) ? this : new StarfishEngine(this, source);
+    }
+
+    // The range of the coordinate that pixels i0 to i1 along an axis of
+    // the given size are sampled at, supersamples included. Tileable
+    // images take the whole axis once the range runs past an edge, as
+    // what is sampled there comes from the far side.
+    private void span(int i0, int i1, int size, double[] f)
+    {
+        double u0 = i0;
+        double u1 = i1;
+        if (mWrapMode != WrapMode.WRAP_NONE && (i0 < 0 || i1 >= size))
+        {
+            u0 = 0;
+            u1 = size;
+        }
+        double t0 = ((u0 * 2.0) / (double)size) - 1.0;
+        double t1 = ((u1 * 2.0) / (double)size) - 1.0;
+        if (mWrapMode != WrapMode.WRAP_MIRROR)
+        {
+            f[0] = t0;
+            f[1] = t1;
+        }
+        else
+        {
+            f[0] = ((t0 <= 0 && t1 >= 0) ? 0.0 : Math.min(Math.abs(t0), Math.abs(t1))) - 0.5;
+            f[1] = Math.max(Math.abs(t0), Math.abs(t1)) - 0.5;
+        }
+    }
+
+    // Does the adaptive anti-aliasing of a block, as getBlock would, for a
+    // progressive render that already has the whole image sampled once per
+    // pixel in image. Only neighbours beyond the edge of an untiled image
+    // need sampling here.
+    void refineBlock(int x, int y, int w, int h, int[] image, int[] out, int offset, int stride)
+    {
+        BlockScratch scratch = BlockScratch.get();
+        int mark = scratch.mark();
+        try
+        {
+            int bw = w + 2;
+            int[] base = scratch.takeInts(bw * (h + 2));
+            for (int j = 0; j < h + 2; j++)
+            {
+                int row = neighbour(y + j - 1, mHeight);
+                for (int i = 0; i < bw; i++)
+                {
+                    int column = neighbour(x + i - 1, mWidth);
+                    if (row >= 0 && row < mHeight && column >= 0 && column < mWidth)
+                    {
+                        base[j * bw + i] = image[row * mWidth + column];
+                    }
+                    else
+                    {
+                        sampleRow(column, row, 1, base, j * bw + i);
+                    }
+                }
+            }
+            refine(x, y, w, h, base, out, offset, stride);
+        }
+        finally
+        {
+            scratch.reset(mark);
+        }
+    }
+
+    // base holds the block's single samples with a one pixel border
+    void refine(int x, int y, int w, int h, int[] base, int[] out, int offset, int stride)
+    {
+        BlockScratch scratch = BlockScratch.get();
+        int mark = scratch.mark();
+        try
+        {
+            int bw = w + 2;
+            int[] edges = scratch.takeInts(w * h);
+            int m = 0;
+            for (int j = 0; j < h; j++)
+            {
+                for (int i = 0; i < w; i++)
+                {
+                    int b = (j + 1) * bw + i + 1;
+                    int c = base[b];
+                    if (PackedPixel.distance(c, base[b - 1]) > EDGE_CONTRAST
+                            || PackedPixel.distance(c, base[b + 1]) > EDGE_CONTRAST
+                            || PackedPixel.distance(c, base[b - bw]) > EDGE_CONTRAST
+                            || PackedPixel.distance(c, base[b + bw]) > EDGE_CONTRAST)
+                    {
+                        edges[m++] = j * w + i;
+                    }
+                    out[offset + j * stride + i] = c;
+                }
+            }
+            if (m > 0)
+            {
+                supersample(x, y, w, edges, m, out, offset, stride);
+            }
+        }
+        finally
+        {
+            scratch.reset(mark);
+        }
+    }
+
+    // Neighbours past the edge of a tileable image come from the far side,
+    // matching what the next tile over would see.
+    int neighbour(int i, int size)
+    {
+        return (mWrapMode == WrapMode.WRAP_NONE) ? i : Math.floorMod(i, size);
+    }
+
+    void supersample(int x, int y, int w, int[] edges, int m, int[] out, int offset, int stride)
+    {
+        BlockScratch scratch = BlockScratch.get();
+        int mark = scratch.mark();
+        double[] px = scratch.take(m);
+        double[] py = scratch.take(m);
+        int[] sample = scratch.takeInts(m);
+        int[] red = scratch.takeInts(m);
+        int[] green = scratch.takeInts(m);
+        int[] blue = scratch.takeInts(m);
+        Arrays.fill(red, 0, m, 0);
+        Arrays.fill(green, 0, m, 0);
+        Arrays.fill(blue, 0, m, 0);
+        for (int k = 0; k < mEdgeSamples; k++)
+        {
+            for (int e = 0; e < m; e++)
+            {
+                px[e] = x + (edges[e] % w) + mEdgeX[k];
+                py[e] = y + (edges[e] / w) + mEdgeY[k];
+            }
+            sampleAt(px, py, sample, m);
+            for (int e = 0; e < m; e++)
+            {
+                red[e] += (sample[e] >> 16) & 0xFF;
+                green[e] += (sample[e] >> 8) & 0xFF;
+                blue[e] += sample[e] & 0xFF;
+            }
+        }
+        int shift = Integer.numberOfTrailingZeros(mEdgeSamples);
+        int round = mEdgeSamples >> 1;
+        for (int e = 0; e < m; e++)
+        {
+            out[offset + (edges[e] / w) * stride + (edges[e] % w)] =
+                    (((red[e] + round) >> shift) << 16)
+                    | (((green[e] + round) >> shift) << 8)
+                    | ((blue[e] + round) >> shift);
+        }
+        scratch.reset(mark);
+    }
+
+    // One sample per pixel of a row, the same as getPixel without adaptive
+    // anti-aliasing.
+    void sampleRow(int x, int y, int n, int[] out, int offset)
+    {
+        sampleRow(x, y, n, 1, out, offset);
+    }
+
+    // Samples pixels x, x+step, ... of row y into out[offset],
+    // out[offset+step], ...
+    void sampleRow(int x, int y, int n, int step, int[] out, int offset)
+    {
+        BlockScratch scratch = BlockScratch.get();
+        int mark = scratch.mark();
+        try
+        {
+            double[] fx = scratch.take(n);
+            double[] fy = scratch.take(n);
+            int[] wx = scratch.takeInts(n);
+            int[] wy = scratch.takeInts(n);
+            boolean mirrored = (mWrapMode == WrapMode.WRAP_MIRROR);
+            double fyrow = mirrored ? mirror(y, mHeight) : (((double)y * 2.0) / (double)mHeight) - 1.0;
+            int ybackmask = (int) (((long) y << 16) / mHeight);
+            for (int i = 0; i < n; i++)
+            {
+                int px = x + i * step;
+                fx[i] = mirrored ? mirror(px, mWidth) : (((double)px * 2.0) / (double)mWidth) - 1.0;
+                fy[i] = fyrow;
+                wx[i] = (int) (((long) px << 16) / mWidth);
+                wy[i] = ybackmask;
+            }
+            int[] row = scratch.takeInts(n);
+            evaluate(fx, fy, wx, wy, row, n);
+            for (int i = 0; i < n; i++)
+            {
+                out[offset + i * step] = row[i];
+            }
+        }
+        finally
+        {
+            scratch.reset(mark);
+        }
+    }
+
+    // Samples at arbitrary points given in pixels, for the adaptive
+    // anti-aliasing. Tileable images wrap points past their edges round to
+    // the far side.
+    void sampleAt(double[] px, double[] py, int[] out, int n)
+    {
+        BlockScratch scratch = BlockScratch.get();
+        int mark = scratch.mark();
+        double[] fx = scratch.take(n);
+        double[] fy = scratch.take(n);
+        int[] wx = scratch.takeInts(n);
+        int[] wy = scratch.takeInts(n);
+        for (int i = 0; i < n; i++)
+        {
+            double u = px[i];
+            double v = py[i];
+            if (mWrapMode != WrapMode.WRAP_NONE)
+            {
+                u = u - Math.floor(u / mWidth) * mWidth;
+                v = v - Math.floor(v / mHeight) * mHeight;
+            }
+            if (mWrapMode == WrapMode.WRAP_MIRROR)
+            {
+                fx[i] = mirror(u, mWidth);
+                fy[i] = mirror(v, mHeight);
+            }
+            else
+            {
+                fx[i] = ((u * 2.0) / (double)mWidth) - 1.0;
+                fy[i] = ((v * 2.0) / (double)mHeight) - 1.0;
+            }
+            wx[i] = PackedPixel.weight(u / mWidth);
+            wy[i] = PackedPixel.weight(v / mHeight);
+        }
+        evaluate(fx, fy, wx, wy, out, n);
+        scratch.reset(mark);
+    }
+
+    // Evaluates the tree at (fx, fy). For the blend wrap, wx and wy weigh
+    // each sample towards its right-hand and lower copies; the other modes
+    // ignore them.
+    void evaluate(double[] fx, double[] fy, int[] wx, int[] wy, int[] out, int n)
+    {
+        if (mWrapMode != WrapMode.WRAP_BLEND)
+        {
+            mSource.value(fx, fy, out, n);
+            return;
+        }
+        BlockScratch scratch = BlockScratch.get();
+        int mark = scratch.mark();
+        int[] topleft = scratch.takeInts(n);
+        int[] topright = scratch.takeInts(n);
+        int[] bottomleft = scratch.takeInts(n);
+        double[] sx = scratch.take(n);
+        double[] sy = scratch.take(n);
+        for (int i = 0; i < n; i++)
+        {
+            sx[i] = fx[i] + 1.0;
+        }
+        mSource.value(sx, fy, topleft, n);
+        for (int i = 0; i < n; i++)
+        {
+            sy[i] = fy[i] - 2.0;
+        }
+        mSource.value(sx, sy, bottomleft, n);
+        for (int i = 0; i < n; i++)
+        {
+            sx[i] = fx[i] - 1.0;
+        }
+        mSource.value(sx, fy, topright, n);
+        mSource.value(sx, sy, out, n);
+        for (int i = 0; i < n; i++)
+        {
+            int top = PackedPixel.blend(topleft[i], topright[i], wx[i]);
+            int bottom = PackedPixel.blend(bottomleft[i], out[i], wx[i]);
+            out[i] = PackedPixel.blend(top, bottom, wy[i]);
+        }
+        scratch.reset(mark);
+    }
+
+    static StarfishPalette initRandomPalette(StarfishPalette p)
+    {
+        return initRandomPalette(p, new SplittableRandom());
+    }
+
+    static StarfishPalette initRandomPalette(StarfishPalette p, SplittableRandom r)
+    {
+        p.colourCount = r.nextInt(255) + 2;
+
+        p.colour[0] = new pixel(0,0,0);
+        p.colour[1] = new pixel(255,255,255);
+
+        for (int i = 2; i < p.colourCount; i++)
+        {
+            p.colour[i] = new pixel(r.nextInt(256),r.nextInt(256),r.nextInt(256));
+        }
+        return p;
+    }
+}
+
+// The shell every compiled tree is loaded into. Each compiled tree gets its
+// own hidden copy of this class whose TARGET is the tree's method handle,
+// so the JIT sees the handle as a constant and can inline the whole tree
+// into value(). The template itself is never initialised.
+final class CompiledLayerTemplate
+{
+    static final MethodHandle TARGET;
+
+    static
+    {
+        try
+        {
+            TARGET = MethodHandles.classData(MethodHandles.lookup(), "_", MethodHandle.class);
+        }
+        catch (IllegalAccessException e)
+        {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    static int value(double x, double y) throws Throwable
+    {
+        return (int) TARGET.invokeExact(x, y);
+    }
+}
+
+class CompiledImageLayer implements ImageLayer
+{
+    MethodHandle mPixel;
+
+    CompiledImageLayer(MethodHandle pixel)
+    {
+        mPixel = pixel;
+    }
+
+    public int value(double x, double y)
+    {
+        try
+        {
+            return (int) mPixel.invokeExact(x, y);
+        }
+        catch (RuntimeException e)
+        {
+            throw e;
+        }
+        catch (Error e)
+        {
+            throw e;
+        }
+        catch (Throwable t)
+        {
+            throw new IllegalStateException(t);
+        }
+    }
+
+    public void value(double[] x, double[] y, int[] out, int n)
+    {
+        for (int i = 0; i < n; i++)
+        {
+            out[i] = value(x[i], y[i]);
+        }
+    }
+}
+
+// Turns a finished ImageLayer tree into a single method handle with every
+// random parameter bound as a constant. The helpers below repeat the node
+// arithmetic expression for expression, so the compiled tree gives exactly
+// the interpreted results. Node types the compiler does not know are
+// called through their interface, so wrapped trees still compile.
+final class WaveCompiler
+{
+    private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+    private static final MethodType LINEAR = MethodType.methodType(double.class, double.class);
+    private static final MethodType PLANAR = MethodType.methodType(double.class, double.class, double.class);
+    private static final MethodType LAYER = MethodType.methodType(int.class, double.class, double.class);
+
+    private WaveCompiler()
+    {
+    }
+
+    static ImageLayer compile(ImageLayer root)
+    {
+        MethodHandle pixel = layer(root);
+        try
+        {
+            return new CompiledImageLayer(specialize(pixel));
+        }
+        catch (Exception e)
+        {
+            // Without a hidden class the combinators still run, just with
+            // less inlining across the tree.
+            return new CompiledImageLayer(pixel);
+        }
+    }
+
+    private static MethodHandle specialize(MethodHandle pixel) throws Exception
+    {
+        InputStream is = WaveCompiler.class.getResourceAsStream("CompiledLayerTemplate.class");
+        if (is == null)
+        {
+            throw new IOException("CompiledLayerTemplate.class not found");
+        }
+        byte[] bytes;
+        try
+        {
+            bytes = is.readAllBytes();
+        }
+        finally
+        {
+            is.close();
+        }
+        MethodHandles.Lookup hidden = LOOKUP.defineHiddenClassWithClassData(bytes, pixel, true);
+        return hidden.findStatic(hidden.lookupClass(), "value", LAYER);
+    }
+
+    private static MethodHandle helper(String name, Class<?> ret, Class<?>... args)
+    {
+        try
+        {
+            return LOOKUP.findStatic(WaveCompiler.class, name, MethodType.methodType(ret, args));
+        }
+        catch (ReflectiveOperationException e)
+        {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static MethodHandle bind(MethodHandle mh, int pos, Object... values)
+    {
+        return MethodHandles.insertArguments(mh, pos, values);
+    }
+
+    // f(a, b) with a = fa(x, y) and b = fb(x, y) becomes g(x, y).
+    private static MethodHandle planarPair(MethodHandle f, MethodHandle fa, MethodHandle fb)
+    {
+        MethodHandle g = MethodHandles.collectArguments(f, 0, fa);
+        g = MethodHandles.collectArguments(g, 2, fb);
+        return MethodHandles.permuteArguments(g, g.type().dropParameterTypes(2, 4), 0, 1, 0, 1);
+    }
+
+    // f(a, b) with a = fa(d) and b = fb(d) becomes g(d).
+    private static MethodHandle linearPair(MethodHandle f, MethodHandle fa, MethodHandle fb)
+    {
+        MethodHandle g = MethodHandles.filterArguments(f, 0, fa, fb);
+        return MethodHandles.permuteArguments(g, LINEAR, 0, 0);
+    }
+
+    private static final MethodHandle NEGATE = helper("negate", double.class, double.class);
+    private static final MethodHandle ADD = helper("add", double.class, double.class, double.class);
+    private static final MethodHandle MULTIPLY = helper("multiply", double.class, double.class, double.class);
+    private static final MethodHandle MIN = helper("min", double.class, double.class, double.class);
+    private static final MethodHandle MAX = helper("max", double.class, double.class, double.class);
+    private static final MethodHandle GAMMA = helper("gamma", double.class, double.class, double.class);
+    private static final MethodHandle HYPOTENUSE = helper("hypotenuse", double.class, double.class, double.class);
+    private static final MethodHandle COSWAVE = helper("coswave", double.class, double.class, double.class, double.class, boolean.class);
+    private static final MethodHandle SAWTOOTH = helper("sawtooth", double.class, double.class, double.class, double.class, double.class);
+    private static final MethodHandle ESS = helper("ess", double.class, double.class, double.class, double.class);
+    private static final MethodHandle PEAKS = helper("peaks", double.class, double.class, double.class, boolean.class);
+    private static final MethodHandle MIX_LINEAR = helper("mixLinear", double.class, double.class, double.class, double.class, double.class, double.class);
+    private static final MethodHandle MIX_PLANAR = helper("mixPlanar", double.class, double.class, double.class, double.class, double.class);
+    private static final MethodHandle ZIGZAG = helper("zigzag", double.class, double.class, double.class, double.class);
+    private static final MethodHandle SPIN_ANGLE = helper("spinAngle", double.class, double.class, double.class, double.class, boolean.class);
+    private static final MethodHandle STARFISH2 = helper("starfish2", double.class, double.class, double.class, double.class, double.class, double.class);
+    private static final MethodHandle SPINFLAKE = helper("spinflake", double.class, double.class, double.class, double.class, double.class, double.class, double.class, double.class, boolean.class);
+    private static final MethodHandle SCALE = helper("multiply", double.class, double.class, double.class);
+    private static final MethodHandle WARP_Y = helper("warpY", double.class, double.class, double.class, double.class, double.class);
+    private static final MethodHandle ABS = helper("abs", double.class, double.class);
+    private static final MethodHandle REFLECT_Y = helper("reflectY", double.class, double.class, double.class, int.class);
+    private static final MethodHandle QUAD = helper("quad", double.class, double.class, double.class);
+    private static final MethodHandle HEX_X = helper("hexX", double.class, double.class, double.class,
+            double.class, double.class, double.class, double.class, double.class);
+    private static final MethodHandle HEX_Y = helper("hexY", double.class, double.class, double.class,
+            double.class, double.class, double.class, double.class, double.class);
+    private static final MethodHandle ROTAWARP_ANGLE = helper("rotawarpAngle", double.class, double.class, double.class, double.class, double.class, boolean.class);
+    private static final MethodHandle POLAR_X = helper("polarX", double.class, double.class, double.class, boolean.class);
+    private static final MethodHandle POLAR_Y = helper("polarY", double.class, double.class, double.class, boolean.class);
+    private static final MethodHandle MIXMASTER_X = helper("mixmasterX", double.class, double.class, double.class, double.class, double.class, double.class, double.class);
+    private static final MethodHandle MIXMASTER_Y = helper("mixmasterY", double.class, double.class, double.class, double.class, double.class, double.class, double.class);
+    private static final MethodHandle GRADIENT = helper("gradient", int.class, double.class, int[].class);
+    private static final MethodHandle MASK_WEIGHT = helper("maskWeight", int.class, double.class);
+    private static final MethodHandle ONLY_A = helper("onlyA", boolean.class, int.class);
+    private static final MethodHandle ONLY_B = helper("onlyB", boolean.class, int.class);
+    private static final MethodHandle BLEND = helper("blend", int.class, int.class, int.class, int.class);
+    private static final MethodHandle AVERAGE2 = helper("average2", int.class, int.class, int.class);
+    private static final MethodHandle AVERAGE4 = helper("average4", int.class, int.class, int.class, int.class, int.class);
+
+    static MethodHandle linear(LinearWave w)
+    {
+        if (w instanceof Coswave)
+        {
+            Coswave c = (Coswave) w;
+            return bind(COSWAVE, 1, c.mPeriod, c.mPhase, c.mFastMath);
+        }
+        if (w instanceof Sawtooth)
+        {
+            Sawtooth s = (Sawtooth) w;
+            return bind(SAWTOOTH, 1, s.mPhase, s.mPeriod, s.mFlipSign);
+        }
+        if (w instanceof Ess)
+        {
+            Ess e = (Ess) w;
+            return bind(ESS, 1, e.mAcceleration, e.mFlipSign);
+        }
+        if (w instanceof InvertWave)
+        {
+            return MethodHandles.filterReturnValue(linear(((InvertWave) w).mSource), NEGATE);
+        }
+        if (w instanceof InsertWavePeaks)
+        {
+            InsertWavePeaks p = (InsertWavePeaks) w;
+            return MethodHandles.filterReturnValue(linear(p.mSource), bind(PEAKS, 1, p.mScale, p.mProcessSign));
+        }
+        if (w instanceof Modulator)
+        {
+            Modulator m = (Modulator) w;
+            MethodHandle g = MethodHandles.filterReturnValue(ADD, linear(m.mSource));
+            g = MethodHandles.filterArguments(g, 1, linear(m.mWobbler));
+            return MethodHandles.permuteArguments(g, LINEAR, 0, 0);
+        }
+        if (w instanceof MixLinear)
+        {
+            MixLinear m = (MixLinear) w;
+            return linearPair(bind(MIX_LINEAR, 2, m.mAFactor, m.mBFactor, m.mSumFactor),
+                    linear(m.mAWave), linear(m.mBWave));
+        }
+        if (w instanceof MinimaxLinear)
+        {
+            MinimaxLinear m = (MinimaxLinear) w;
+            return linearPair(m.mMin ? MIN : MAX, linear(m.mASrc), linear(m.mBSrc));
+        }
+        if (w instanceof MultiplyLinear)
+        {
+            MultiplyLinear m = (MultiplyLinear) w;
+            return linearPair(MULTIPLY, linear(m.mASrc), linear(m.mBSrc));
+        }
+        if (w instanceof GammaLinear)
+        {
+            GammaLinear g = (GammaLinear) w;
+            return MethodHandles.filterReturnValue(linear(g.mSource), bind(GAMMA, 1, g.mExp));
+        }
+        try
+        {
+            return LOOKUP.findVirtual(LinearWave.class, "value", LINEAR).bindTo(w);
+        }
+        catch (ReflectiveOperationException e)
+        {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static MethodHandle planar(PlanarWave w)
+    {
+        if (w instanceof Pebbledrop)
+        {
+            return MethodHandles.collectArguments(linear(((Pebbledrop) w).mSource), 0, HYPOTENUSE);
+        }
+        if (w instanceof Curtain)
+        {
+            return MethodHandles.dropArguments(linear(((Curtain) w).mSource), 1, double.class);
+        }
+        if (w instanceof Zigzag)
+        {
+            Zigzag z = (Zigzag) w;
+            MethodHandle g = MethodHandles.filterReturnValue(bind(ZIGZAG, 2, z.mAmplitude), linear(z.mSource));
+            return MethodHandles.filterArguments(g, 1, linear(z.mOscillator));
+        }
+        if (w instanceof Starfish2)
+        {
+            Starfish2 s = (Starfish2) w;
+            MethodHandle g = MethodHandles.filterReturnValue(
+                    bind(STARFISH2, 3, s.mAmplitude, s.mAttenuation), linear(s.mSource));
+            MethodHandle wave = MethodHandles.collectArguments(linear(s.mOscillator), 0,
+                    bind(SPIN_ANGLE, 2, s.mSpinRate, s.mFastMath));
+            g = MethodHandles.collectArguments(g, 2, wave);
+            return MethodHandles.permuteArguments(g, PLANAR, 0, 1, 0, 1);
+        }
+        if (w instanceof Spinflake)
+        {
+            Spinflake s = (Spinflake) w;
+            MethodHandle g = bind(SPINFLAKE, 3, s.mAmplitude, s.mRadius, s.mSharpness, s.mSignflip, s.mFastMath);
+            MethodHandle wave = MethodHandles.collectArguments(linear(s.mSource), 0,
+                    bind(SPIN_ANGLE, 2, 1.0, s.mFastMath));
+            g = MethodHandles.collectArguments(g, 2, wave);
+            return MethodHandles.permuteArguments(g, PLANAR, 0, 1, 0, 1);
+        }
+        if (w instanceof InvertPlane)
+        {
+            return MethodHandles.filterReturnValue(planar(((InvertPlane) w).mSource), NEGATE);
+        }
+        if (w instanceof MinimaxPlanar)
+        {
+            MinimaxPlanar m = (MinimaxPlanar) w;
+            return planarPair(m.mMin ? MIN : MAX, planar(m.mASrc), planar(m.mBSrc));
+        }
+        if (w instanceof MixPlanar)
+        {
+            MixPlanar m = (MixPlanar) w;
+            return planarPair(bind(MIX_PLANAR, 2, m.mABias, m.mBBias), planar(m.mASrc), planar(m.mBSrc));
+        }
+        if (w instanceof WarpPlane)
+        {
+            WarpPlane p = (WarpPlane) w;
+            MethodHandle g = MethodHandles.collectArguments(planar(p.mSource), 1,
+                    bind(WARP_Y, 2, p.mAmplitude, p.mAttenuation));
+            MethodHandle wave = MethodHandles.filterArguments(linear(p.mModulator), 0,
+                    bind(SCALE, 1, p.mAcceleration));
+            g = MethodHandles.filterArguments(g, 2, wave);
+            return MethodHandles.permuteArguments(g, PLANAR, 0, 1, 0);
+        }
+        if (w instanceof Reflector)
+        {
+            Reflector r = (Reflector) w;
+            MethodHandle g = MethodHandles.collectArguments(planar(r.mSource), 1,
+                    bind(REFLECT_Y, 2, r.mMode));
+            g = MethodHandles.filterArguments(g, 0, ABS);
+            return MethodHandles.permuteArguments(g, PLANAR, 0, 0, 1);
+        }
+        if (w instanceof GammaPlanar)
+        {
+            GammaPlanar g = (GammaPlanar) w;
+            return MethodHandles.filterReturnValue(planar(g.mSource), bind(GAMMA, 1, g.mExp));
+        }
+        if (w instanceof MultiplyPlanar)
+        {
+            MultiplyPlanar m = (MultiplyPlanar) w;
+            return planarPair(MULTIPLY, planar(m.mASrc), planar(m.mBSrc));
+        }
+        if (w instanceof Quadratesselator)
+        {
+            Quadratesselator q = (Quadratesselator) w;
+            return MethodHandles.filterArguments(planar(q.mSource), 0,
+                    bind(QUAD, 1, q.mHSize), bind(QUAD, 1, q.mVSize));
+        }
+        if (w instanceof Hexatesselator)
+        {
+            Hexatesselator h = (Hexatesselator) w;
+            Object[] constants = { h.mScale, h.cosThirdPi, h.sinThirdPi, h.twiceSinThirdPi, h.tanThirdPi };
+            return planarPair(planar(h.mSource), bind(HEX_X, 2, constants), bind(HEX_Y, 2, constants));
+        }
+        if (w instanceof Rotawarp)
+        {
+            // source(hyp cos a, hyp sin a) with a = atan2(y, x) + warp(hyp) * amplitude,
+            // arranged so the square root and atan2 are each taken once.
+            Rotawarp r = (Rotawarp) w;
+            MethodHandle polar = planarPair(planar(r.mSource),
+                    bind(POLAR_X, 2, r.mFastMath), bind(POLAR_Y, 2, r.mFastMath));
+            MethodHandle g = MethodHandles.collectArguments(polar, 1,
+                    bind(ROTAWARP_ANGLE, 3, r.mAmplitude, r.mFastMath));
+            g = MethodHandles.filterArguments(g, 3, linear(r.mWarp));
+            g = MethodHandles.permuteArguments(g, PLANAR.appendParameterTypes(double.class), 2, 0, 1, 2);
+            g = MethodHandles.collectArguments(g, 2, HYPOTENUSE);
+            return MethodHandles.permuteArguments(g, PLANAR, 0, 1, 0, 1);
+        }
+        if (w instanceof Mixmaster)
+        {
+            Mixmaster m = (Mixmaster) w;
+            return planarPair(planar(m.mSource),
+                    bind(MIXMASTER_X, 2, m.mXOff, m.mYOff, m.mCosXFact, m.mSinXFact),
+                    bind(MIXMASTER_Y, 2, m.mXOff, m.mYOff, m.mSinYFact, m.mCosYFact));
+        }
+        try
+        {
+            return LOOKUP.findVirtual(PlanarWave.class, "value", PLANAR).bindTo(w);
+        }
+        catch (ReflectiveOperationException e)
+        {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static MethodHandle layer(ImageLayer l)
+    {
+        if (l instanceof Gradientor)
+        {
+            Gradientor g = (Gradientor) l;
+            return MethodHandles.filterReturnValue(planar(g.mSource), bind(GRADIENT, 1, (Object) g.mRamp));
+        }
+        if (l instanceof Compositor)
+        {
+            Compositor c = (Compositor) l;
+            // as Compositor.value: the weight w first, then (w, x, y) picks
+            // A, B or the blend of both
+            MethodHandle a = layer(c.mSrcA);
+            MethodHandle b = layer(c.mSrcB);
+            MethodHandle both = MethodHandles.collectArguments(BLEND, 0, a);
+            both = MethodHandles.collectArguments(both, 2, b);
+            both = MethodHandles.permuteArguments(both, LAYER.insertParameterTypes(0, int.class), 1, 2, 1, 2, 0);
+            MethodHandle pick = MethodHandles.guardWithTest(ONLY_B,
+                    MethodHandles.dropArguments(b, 0, int.class), both);
+            pick = MethodHandles.guardWithTest(ONLY_A, MethodHandles.dropArguments(a, 0, int.class), pick);
+            return MethodHandles.foldArguments(pick, MethodHandles.filterReturnValue(planar(c.mMask), MASK_WEIGHT));
+        }
+        if (l instanceof AntialiasImage)
+        {
+            AntialiasImage a = (AntialiasImage) l;
+            MethodHandle source = layer(a.mSource);
+            MethodHandle dx = bind(ADD, 1, a.mDX);
+            MethodHandle dy = bind(ADD, 1, a.mDY);
+            MethodHandle both = MethodHandles.filterArguments(source, 0, dx, dy);
+            if (a.mMode == AAMode.AAMODE_4X)
+            {
+                MethodHandle g = MethodHandles.collectArguments(AVERAGE4, 0, source);
+                g = MethodHandles.collectArguments(g, 2, both);
+                g = MethodHandles.collectArguments(g, 4, MethodHandles.filterArguments(source, 0, dx));
+                g = MethodHandles.collectArguments(g, 6, MethodHandles.filterArguments(source, 1, dy));
+                return MethodHandles.permuteArguments(g, LAYER, 0, 1, 0, 1, 0, 1, 0, 1);
+            }
+            MethodHandle g = MethodHandles.collectArguments(AVERAGE2, 0, source);
+            g = MethodHandles.collectArguments(g, 2, both);
+            return MethodHandles.permuteArguments(g, LAYER, 0, 1, 0, 1);
+        }
+        try
+        {
+            return LOOKUP.findVirtual(ImageLayer.class, "value", LAYER).bindTo(l);
+        }
+        catch (ReflectiveOperationException e)
+        {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static double negate(double v)
+    {
+        return -v;
+    }
+
+    private static double add(double a, double b)
+    {
+        return a + b;
+    }
+
+    private static double multiply(double a, double b)
+    {
+        return a * b;
+    }
+
+    private static double min(double a, double b)
+    {
+        return Math.min(a, b);
+    }
+
+    private static double max(double a, double b)
+    {
+        return Math.max(a, b);
+    }
+
+    private static double abs(double a)
+    {
+        return Math.abs(a);
+    }
+
+    private static double hypotenuse(double x, double y)
+    {
+        return Math.sqrt(x*x + y*y);
+    }
+
+    private static double gamma(double v, double exp)
+    {
+        double cpf;
+        cpf = (v + 1.0) / 2.0;
+        cpf = Math.pow(cpf, exp);
+        return cpf * 2.0 + - 1.0;
+    }
+
+    private static double coswave(double d, double period, double phase, boolean fastMath)
+    {
+        if (fastMath)
+        {
+            return FastMath.cos(d * period + phase);
+        }
+        return Math.cos(d * period + phase);
+    }
+
+    private static double sawtooth(double d, double phase, double period, double flipSign)
+    {
+        d = (d + phase) * period;
+        d = d - Math.floor(d);
+        d = (d * 2.0) - 1.0;
+        return d * flipSign;
+    }
+
+    private static double ess(double d, double acceleration, double flipSign)
+    {
+        return ((2.0/(acceleration*d*d+1.0))-1.0) * flipSign;
+    }
+
+    private static double peaks(double skt, double scale, boolean processSign)
+    {
+        if (processSign)
+        {
+            skt = (skt + 1.0) / 2.0;
+        }
+        skt = skt * scale;
+        if (skt < 0)
+        {
+            skt = skt - Math.ceil(skt);
+        }
+        else
+        {
+            skt = skt - Math.floor(skt);
+        }
+        if (processSign)
+        {
+            skt = (skt * 2.0) - 1.0;
+        }
+        return skt;
+    }
+
+    private static double mixLinear(double a, double b, double aFactor, double bFactor, double sumFactor)
+    {
+        return (a * aFactor + b * bFactor) / sumFactor;
+    }
+
+    private static double mixPlanar(double a, double b, double aBias, double bBias)
+    {
+        return a * aBias + b * bBias;
+    }
+
+    private static double zigzag(double x, double oscillation, double amplitude)
+    {
+        return x + oscillation * amplitude;
+    }
+
+    private static double spinAngle(double x, double y, double spinRate, boolean fastMath)
+    {
+        return (fastMath ? FastMath.atan2(y, x) : Math.atan2(y, x)) * spinRate;
+    }
+
+    private static double starfish2(double x, double y, double oscillation, double amplitude, double attenuation)
+    {
+        double hypotenuse = Math.sqrt(x*x + y*y);
+        double amp = amplitude * (1.0 - (1.0 / (attenuation * hypotenuse * hypotenuse + 1.0)));
+        return hypotenuse + oscillation * amp;
+    }
+
+    private static double spinflake(double x, double y, double wave, double amplitude,
+            double radius, double sharpness, double signflip, boolean fastMath)
+    {
+        double value;
+        double hypotenuse = Math.sqrt(x*x + y*y);
+        hypotenuse = hypotenuse + wave * amplitude;
+        if (hypotenuse < 0) hypotenuse = 0;
+        if (hypotenuse > radius)
+        {
+            value = (fastMath ? FastMath.atan(hypotenuse - radius) :
+                    Math.atan(hypotenuse - radius)) / (Math.PI/2.0);
+        }
+        else
+        {
+            value = 1.0 - Math.pow(hypotenuse / radius, sharpness);
+        }
+        return signflip * ((value * 2.0) - 1.0);
+    }
+
+    private static double warpY(double y, double wave, double amplitude, double attenuation)
+    {
+        double amp = amplitude / (attenuation * y * y + 1.0);
+        return y + wave * amp;
+    }
+
+    private static double reflectY(double x, double y, int mode)
+    {
+        double ty = y;
+        switch (mode)
+        {
+            case 0:
+                if (x < 0) ty = -y;
+                break;
+            case 1:
+                ty = Math.abs(ty);
+                break;
+            default:
+                break;
+        }
+        return ty;
+    }
+
+    private static double quad(double v, double size)
+    {
+        v = (v + 1.0) / 2.0;
+        v = v * size;
+        v = v - Math.floor(v);
+        v = v / size;
+        return (v * 2.0) - 1.0;
+    }
+
+    private static double hexX(double x, double y, double scale, double cosThirdPi,
+            double sinThirdPi, double twiceSinThirdPi, double tanThirdPi)
+    {
+        x = x * scale;
+        y = y * scale;
+        x = (x + sinThirdPi) / twiceSinThirdPi;
+        x = x - Math.floor(x);
+        x = (x * twiceSinThirdPi) - sinThirdPi;
+        y = (y + 2.0) / 3.0;
+        y = y - Math.floor(y);
+        y = (y * 3.0) - 2.0;
+
+        double dx;
+        if (y - cosThirdPi > Math.abs(x) / tanThirdPi || -y -cosThirdPi> Math.abs(x) / tanThirdPi)
+        {
+            dx = 0;
+        }
+        else if (x < 0)
+        {
+            dx = sinThirdPi;
+        }
+        else
+        {
+            dx = -sinThirdPi;
+        }
+        return x + dx;
+    }
+
+    private static double hexY(double x, double y, double scale, double cosThirdPi,
+            double sinThirdPi, double twiceSinThirdPi, double tanThirdPi)
+    {
+        x = x * scale;
+        y = y * scale;
+        x = (x + sinThirdPi) / twiceSinThirdPi;
+        x = x - Math.floor(x);
+        x = (x * twiceSinThirdPi) - sinThirdPi;
+        y = (y + 2.0) / 3.0;
+        y = y - Math.floor(y);
+        y = (y * 3.0) - 2.0;
+
+        double dy;
+        if (y - cosThirdPi > Math.abs(x) / tanThirdPi)
+        {
+            dy = -2 + cosThirdPi;
+        }
+        else if (-y -cosThirdPi> Math.abs(x) / tanThirdPi)
+        {
+            dy = 1.0 + cosThirdPi;
+        }
+        else
+        {
+            dy = 0;
+        }
+        return y + dy;
+    }
+
+    private static double rotawarpAngle(double x, double y, double wave, double amplitude, boolean fastMath)
+    {
+        double angle = fastMath ? FastMath.atan2(y, x) : Math.atan2(y, x);
+        return angle + wave * amplitude;
+    }
+
+    private static double polarX(double hyp, double angle, boolean fastMath)
+    {
+        return hyp * (fastMath ? FastMath.cos(angle) : Math.cos(angle));
+    }
+
+    private static double polarY(double hyp, double angle, boolean fastMath)
+    {
+        return hyp * (fastMath ? FastMath.sin(angle) : Math.sin(angle));
+    }
+
+    private static double mixmasterX(double x, double y, double xOff, double yOff, double cosXFact, double sinXFact)
+    {
+        x += xOff;
+        y += yOff;
+        return x * cosXFact - y * sinXFact;
+    }
+
+    private static double mixmasterY(double x, double y, double xOff, double yOff, double sinYFact, double cosYFact)
+    {
+        x += xOff;
+        y += yOff;
+        return x * sinYFact + y * cosYFact;
+    }
+
+    private static int gradient(double v, int[] ramp)
+    {
+        return ramp[Gradientor.rampIndex(v)];
+    }
+
+    private static int maskWeight(double mask)
+    {
+        return Compositor.weight(mask);
+    }
+
+    private static boolean onlyA(int w)
+    {
+        return w <= Compositor.ONLY_A;
+    }
+
+    private static boolean onlyB(int w)
+    {
+        return w >= Compositor.ONLY_B;
+    }
+
+    private static int blend(int a, int b, int w)
+    {
+        return PackedPixel.blend(a, b, w);
+    }
+
+    private static int average2(int a, int b)
+    {
+        int red = ((a >> 16) & 0xFF) + ((b >> 16) & 0xFF);
+        int green = ((a >> 8) & 0xFF) + ((b >> 8) & 0xFF);
+        int blue = (a & 0xFF) + (b & 0xFF);
+        return ((red >> 1) << 16) | ((green >> 1) << 8) | (blue >> 1);
+    }
+
+    private static int average4(int a, int b, int c, int d)
+    {
+        int red = ((a >> 16) & 0xFF) + ((b >> 16) & 0xFF) + ((c >> 16) & 0xFF) + ((d >> 16) & 0xFF);
+        int green = ((a >> 8) & 0xFF) + ((b >> 8) & 0xFF) + ((c >> 8) & 0xFF) + ((d >> 8) & 0xFF);
+        int blue = (a & 0xFF) + (b & 0xFF) + (c & 0xFF) + (d & 0xFF);
+        return ((red >> 2) << 16) | ((green >> 2) << 8) | (blue >> 2);
+    }
+}
+
+// Called as each tile of a render is finished. A progressive render calls
+// it once per pass with the step of the pixel grid now filled in: only
+// pixels whose offsets from the tile's corner are multiples of step hold
+// values yet.
+interface TileListener
+{
+    void tileDone(int x, int y, int width, int height, int step);
+}
+
+class TileRenderer
+{
+    static final int TILE_SIZE = 64;
+
+    // what a TileTask does to each of its tiles
+    static final int FULL = 0;
+    static final int COARSE = 1;
+    static final int MEDIUM = 2;
+    static final int FINE = 3;
+    static final int EDGES = 4;
+    static final int BAND = 5;
+
+    StarfishEngine mEngine;
+    ForkJoinPool mPool;
+    int mTilesAcross;
+    int mTilesDown;
+    volatile boolean mCancelled;
+
+    TileRenderer(StarfishEngine engine)
+    {
+        this(engine, ForkJoinPool.commonPool());
+    }
+
+    TileRenderer(StarfishEngine engine, ForkJoinPool pool)
+    {
+        mEngine = engine;
+        mPool = pool;
+        mTilesAcross = (engine.mWidth + TILE_SIZE - 1) / TILE_SIZE;
+        mTilesDown = (engine.mHeight + TILE_SIZE - 1) / TILE_SIZE;
+    }
+
+    void cancel()
+    {
+        mCancelled = true;
+    }
+
+    boolean isCancelled()
+    {
+        return mCancelled;
+    }
+
+    // Renders the whole image into out as packed 0xRRGGBB values, row-major
+    // with a stride of the engine width. Tiles are handed out to the pool's
+    // workers by work stealing. Each tile goes through getBlock, which
+    // matches getPixel bit for bit, on the engine's region for the tile,
+    // which matches the engine, so the output is identical to a serial
+    // loop over getPixel.
+    int[] render(int[] out, TileListener listener)
+    {
+        if (out == null)
+        {
+            out = new int[mEngine.mWidth * mEngine.mHeight];
+        }
+        Profiler.RenderEvent event = new Profiler.RenderEvent(mEngine);
+        event.begin();
+        mPool.invoke(new TileTask(out, null, listener, FULL, 0, mTilesAcross * mTilesDown));
+        event.commit();
+        return out;
+    }
+
+    // Renders the same image as render, but in passes so that a preview
+    // can show the whole composition early: first every fourth pixel of
+    // every fourth row, then the rest of every second pixel of every
+    // second row, then everything else. No pixel is sampled twice. With
+    // adaptive anti-aliasing a last pass resamples the edges of the
+    // finished one-sample image.
+    int[] renderProgressive(int[] out, TileListener listener)
+    {
+        if (out == null)
+        {
+            out = new int[mEngine.mWidth * mEngine.mHeight];
+        }
+        int tiles = mTilesAcross * mTilesDown;
+        Profiler.RenderEvent event = new Profiler.RenderEvent(mEngine);
+        event.begin();
+        for (int pass = COARSE; pass <= FINE && !mCancelled; pass++)
+        {
+            mPool.invoke(new TileTask(out, null, listener, pass, 0, tiles));
+        }
+        if (mEngine.mEdgeSamples > 0 && !mCancelled)
+        {
+            mPool.invoke(new TileTask(out, out.clone(), listener, EDGES, 0, tiles));
+        }
+        event.commit();
+        return out;
+    }
+
+    // Starts rendering one row of tiles on the pool, into out, which holds
+    // only those TILE_SIZE rows. The band is finished when the returned
+    // task is.
+    ForkJoinTask<Void> startBand(int band, int[] out)
+    {
+        return mPool.submit(new TileTask(out, null, null, BAND,
+                band * mTilesAcross, (band + 1) * mTilesAcross));
+    }
+
+    // out starts at row originY of the image
+    void renderTile(int[] out, int tile, TileListener listener, int originY)
+    {
+        int width = mEngine.mWidth;
+        int x0 = (tile % mTilesAcross) * TILE_SIZE;
+        int y0 = (tile / mTilesAcross) * TILE_SIZE;
+        int x1 = Math.min(x0 + TILE_SIZE, width);
+        int y1 = Math.min(y0 + TILE_SIZE, mEngine.mHeight);
+        mEngine.region(x0, y0, x1 - x0, y1 - y0)
+                .getBlock(x0, y0, x1 - x0, y1 - y0, out, (y0 - originY) * width + x0, width);
+        if (listener != null)
+        {
+            listener.tileDone(x0, y0, x1 - x0, y1 - y0, 1);
+        }
+    }
+
+    // One pass of a progressive render over one tile. Tiles start on
+    // multiples of TILE_SIZE, so each pass's grid lines up across tiles.
+    void renderPass(int[] out, int[] image, int tile, int pass, TileListener listener)
+    {
+        int width = mEngine.mWidth;
+        int x0 = (tile % mTilesAcross) * TILE_SIZE;
+        int y0 = (tile / mTilesAcross) * TILE_SIZE;
+        int x1 = Math.min(x0 + TILE_SIZE, width);
+        int y1 = Math.min(y0 + TILE_SIZE, mEngine.mHeight);
+        StarfishEngine engine = mEngine.region(x0, y0, x1 - x0, y1 - y0);
+        int step = 1;
+        if (pass == COARSE)
+        {
+            step = 4;
+            for (int j = y0; j < y1; j += 4)
+            {
+                sampleRow(engine, out, x0, x1, j, 4);
+            }
+        }
+        else if (pass == MEDIUM)
+        {
+            step = 2;
+            for (int j = y0; j < y1; j += 2)
+            {
+                if ((j & 3) == 0)
+                {
+                    sampleRow(engine, out, x0 + 2, x1, j, 4);
+                }
+                else
+                {
+                    sampleRow(engine, out, x0, x1, j, 2);
+                }
+            }
+        }
+        else if (pass == FINE)
+        {
+            for (int j = y0; j < y1; j++)
+            {
+                if ((j & 1) == 0)
+                {
+                    sampleRow(engine, out, x0 + 1, x1, j, 2);
+                }
+                else
+                {
+                    sampleRow(engine, out, x0, x1, j, 1);
+                }
+            }
+        }
+        else
+        {
+            engine.refineBlock(x0, y0, x1 - x0, y1 - y0, image, out, y0 * width + x0, width);
+        }
+        if (listener != null)
+        {
+            listener.tileDone(x0, y0, x1 - x0, y1 - y0, step);
+        }
+    }
+
+    void sampleRow(StarfishEngine engine, int[] out, int x, int x1, int y, int step)
+    {
+        int n = (x1 - x + step - 1) / step;
+        if (n > 0)
+        {
+            engine.sampleRow(x, y, n, step, out, y * mEngine.mWidth + x);
+        }
+    }
+
+    class TileTask extends RecursiveAction
+    {
+        private static final long serialVersionUID = 1L;
+
+        int[] mOut;
+        int[] mImage;
+        TileListener mListener;
+        int mPass;
+        int mFirst;
+        int mLast;
+
+        TileTask(int[] out, int[] image, TileListener listener, int pass, int first, int last)
+        {
+            mOut = out;
+            mImage = image;
+            mListener = listener;
+            mPass = pass;
+            mFirst = first;
+            mLast = last;
+        }
+
+        protected void compute()
+        {
+            if (mCancelled)
+            {
+                return;
+            }
+            if (mLast - mFirst <= 1)
+            {
+                if (mFirst < mLast && mPass == FULL)
+                {
+                    renderTile(mOut, mFirst, mListener, 0);
+                }
+                else if (mFirst < mLast && mPass == BAND)
+                {
+                    renderTile(mOut, mFirst, mListener, (mFirst / mTilesAcross) * TILE_SIZE);
+                }
+                else if (mFirst < mLast)
+                {
+                    renderPass(mOut, mImage, mFirst, mPass, mListener);
+                }
+                return;
+            }
+            int mid = (mFirst + mLast) >>> 1;
+            invokeAll(new TileTask(mOut, mImage, mListener, mPass, mFirst, mid),
+                      new TileTask(mOut, mImage, mListener, mPass, mid, mLast));
+        }
+    }
+}
+
+// Writes an 8-bit RGB PNG a few rows at a time, so an image of any size
+// is encoded in a fixed amount of memory. Each row gets whichever PNG
+// filter leaves the smallest sum of absolute differences, as libpng does.
+class PngEncoder
+{
+    private static final int CHUNK_SIZE = 1 << 16;
+    private static final byte[] SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'};
+
+    private OutputStream mOut;
+    private int mWidth;
+    private int mHeight;
+    private int mRowsLeft;
+    private Deflater mDeflater;
+    private DeflaterOutputStream mIdat;
+    private byte[] mPrevious;
+    private byte[] mRaw;
+    private byte[][] mFiltered = new byte[5][];
+
+    PngEncoder(OutputStream out, int width, int height) throws IOException
+    {
+        mOut = out;
+        mWidth = width;
+        mHeight = height;
+        mRowsLeft = height;
+        mOut.write(SIGNATURE);
+        byte[] header = new byte[13];
+        putInt(header, 0, width);
+        putInt(header, 4, height);
+        header[8] = 8;    // bits per channel
+        header[9] = 2;    // truecolour
+        writeChunk("IHDR", header, header.length);
+        mPrevious = new byte[width * 3];
+        mRaw = new byte[width * 3];
+        for (int f = 0; f < mFiltered.length; f++)
+        {
+            mFiltered[f] = new byte[width * 3 + 1];
+            mFiltered[f][0] = (byte) f;
+        }
+        mDeflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+        mIdat = new DeflaterOutputStream(new IdatStream(), mDeflater, CHUNK_SIZE);
+    }
+
+    // An ancillary chunk, such as a saved tree; these go before the first
+    // row.
+    void addChunk(String type, byte[] data) throws IOException
+    {
+        if (mRowsLeft != mHeight)
+        {
+            throw new IllegalStateException("chunks must come before the rows");
+        }
+        writeChunk(type, data, data.length);
+    }
+
+    // rows of packed 0xRRGGBB pixels, width apart, starting at offset
+    void writeRows(int[] rgb, int offset, int rows) throws IOException
+    {
+        if (rows > mRowsLeft)
+        {
+            throw new IllegalStateException("more rows than the image height");
+        }
+        Profiler.EncodeEvent event = new Profiler.EncodeEvent();
+        event.begin();
+        for (int j = 0; j < rows; j++)
+        {
+            int p = offset + j * mWidth;
+            for (int i = 0; i < mWidth; i++)
+            {
+                int c = rgb[p + i];
+                mRaw[i * 3] = (byte) (c >> 16);
+                mRaw[i * 3 + 1] = (byte) (c >> 8);
+                mRaw[i * 3 + 2] = (byte) c;
+            }
+            mIdat.write(filter());
+            byte[] t = mPrevious;
+            mPrevious = mRaw;
+            mRaw = t;
+        }
+        mRowsLeft -= rows;
+        if (event.shouldCommit())
+        {
+            event.width = mWidth;
+            event.rows = rows;
+            event.commit();
+        }
+    }
+
+    // Writes a whole image under a temporary name and renames it into
+    // place, so that a file with the final name is always complete. The
+    // temporary file is removed if that fails.
+    static void writeFile(File f, int[] rgb, int width, int height) throws IOException
+    {
+        writeFile(f, rgb, width, height, null);
+    }
+
+    // tree, if not null, is embedded as TreeCodec.PNG_CHUNK
+    static void writeFile(File f, int[] rgb, int width, int height, byte[] tree) throws IOException
+    {
+        File tmp = new File(f.getPath() + ".tmp");
+        OutputStream os = new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16);
+        boolean done = false;
+        try
+        {
+            try
+            {
+                PngEncoder png = new PngEncoder(os, width, height);
+                if (tree != null)
+                {
+                    png.addChunk(TreeCodec.PNG_CHUNK, tree);
+                }
+                png.writeRows(rgb, 0, height);
+                png.finish();
+            }
+            finally
+            {
+                os.close();
+            }
+            if (!tmp.renameTo(f))
+            {
+                throw new IOException("cannot rename " + tmp + " to " + f);
+            }
+            done = true;
+        }
+        finally
+        {
+            if (!done)
+            {
+                tmp.delete();
+            }
+        }
+    }
+
+    // Ends the image; the stream is left open.
+    void finish() throws IOException
+    {
+        if (mRowsLeft != 0)
+        {
+            throw new IllegalStateException(mRowsLeft + " rows missing");
+        }
+        mIdat.close();
+        mDeflater.end();
+        writeChunk("IEND", new byte[0], 0);
+        mOut.flush();
+    }
+
+    private byte[] filter()
+    {
+        int n = mRaw.length;
+        long[] cost = new long[5];
+        for (int i = 0; i < n; i++)
+        {
+            int x = mRaw[i] & 0xFF;
+            int a = (i >= 3) ? mRaw[i - 3] & 0xFF : 0;
+            int b = mPrevious[i] & 0xFF;
+            int c = (i >= 3) ? mPrevious[i - 3] & 0xFF : 0;
+            mFiltered[0][i + 1] = (byte) x;
+            mFiltered[1][i + 1] = (byte) (x - a);
+            mFiltered[2][i + 1] = (byte) (x - b);
+            mFiltered[3][i + 1] = (byte) (x - ((a + b) >> 1));
+            mFiltered[4][i + 1] = (byte) (x - paeth(a, b, c));
+            for (int f = 0; f < 5; f++)
+            {
+                cost[f] += Math.abs(mFiltered[f][i + 1]);
+            }
+        }
+        int best = 0;
+        for (int f = 1; f < 5; f++)
+        {
+            if (cost[f] < cost[best])
+            {
+                best = f;
+            }
+        }
+        return mFiltered[best];
+    }
+
+    private static int paeth(int a, int b, int c)
+    {
+        int p = a + b - c;
+        int pa = Math.abs(p - a);
+        int pb = Math.abs(p - b);
+        int pc = Math.abs(p - c);
+        if (pa <= pb && pa <= pc) return a;
+        if (pb <= pc) return b;
+        return c;
+    }
+
+    private static void putInt(byte[] b, int offset, int v)
+    {
+        b[offset] = (byte) (v >>> 24);
+        b[offset + 1] = (byte) (v >>> 16);
+        b[offset + 2] = (byte) (v >>> 8);
+        b[offset + 3] = (byte) v;
+    }
+
+    private void writeChunk(String type, byte[] data, int length) throws IOException
+    {
+        byte[] head = new byte[8];
+        putInt(head, 0, length);
+        for (int i = 0; i < 4; i++)
+        {
+            head[4 + i] = (byte) type.charAt(i);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(head, 4, 4);
+        crc.update(data, 0, length);
+        byte[] tail = new byte[4];
+        putInt(tail, 0, (int) crc.getValue());
+        mOut.write(head);
+        mOut.write(data, 0, length);
+        mOut.write(tail);
+    }
+
+    // Collects compressed bytes into IDAT chunks of CHUNK_SIZE.
+    class IdatStream extends OutputStream
+    {
+        byte[] mBuffer = new byte[CHUNK_SIZE];
+        int mCount;
+
+        public void write(int b) throws IOException
+        {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        public void write(byte[] b, int offset, int length) throws IOException
+        {
+            while (length > 0)
+            {
+                int n = Math.min(length, CHUNK_SIZE - mCount);
+                System.arraycopy(b, offset, mBuffer, mCount, n);
+                mCount += n;
+                offset += n;
+                length -= n;
+                if (mCount == CHUNK_SIZE)
+                {
+                    flush();
+                }
+            }
+        }
+
+        public void flush() throws IOException
+        {
+            if (mCount > 0)
+            {
+                writeChunk("IDAT", mBuffer, mCount);
+                mCount = 0;
+            }
+        }
+
+        public void close() throws IOException
+        {
+            flush();
+        }
+    }
+}
+
+// Generic access to the shape of a tree, for tools that only need to
+// visit its nodes: the children of a node are its LinearWave, PlanarWave
+// and ImageLayer fields, in name order as TreeCodec saves them, since the
+// order getDeclaredFields returns them in is not specified.
+final class TreeNodes
+{
+    private TreeNodes()
+    {
+    }
+
+    static List<Field> childFields(Object node)
+    {
+        List<Field> out = new ArrayList<Field>();
+        for (Field f : node.getClass().getDeclaredFields())
+        {
+            Class<?> type = f.getType();
+            if (!Modifier.isStatic(f.getModifiers())
+                    && (type == LinearWave.class || type == PlanarWave.class || type == ImageLayer.class))
+            {
+                out.add(f);
+            }
+        }
+        Collections.sort(out, new Comparator<Field>()
+        {
+            public int compare(Field a, Field b)
+            {
+                return a.getName().compareTo(b.getName());
+            }
+        });
+        return out;
+    }
+
+    static List<Object> children(Object node)
+    {
+        List<Object> out = new ArrayList<Object>();
+        for (Field f : childFields(node))
+        {
+            try
+            {
+                Object child = f.get(node);
+                if (child != null)
+                {
+                    out.add(child);
+                }
+            }
+            catch (IllegalAccessException e)
+            {
+                throw new IllegalStateException(e);
+            }
+        }
+        return out;
+    }
+
+    // every node below and including root, parents before children
+    static List<Object> all(Object root)
+    {
+        List<Object> out = new ArrayList<Object>();
+        out.add(root);
+        for (int i = 0; i < out.size(); i++)
+        {
+            out.addAll(children(out.get(i)));
+        }
+        return out;
+    }
+}
+
+// Saves the tree of an engine, with the settings it was built with, so that
+// it can be rendered again later at any size. The binary form is
+//     'S' 'F' 'T' VERSION seed wrap aa fastMath node
+// where a node is its index in NODE_TYPES followed by its m fields in name
+// order: doubles, ints and the seed big-endian, booleans and enums one byte,
+// colours three bytes, and child nodes in place. The JSON form holds the
+// same values by name. Loading runs each node's constructor on placeholder
+// arguments, which sets up any fields that are not saved, and then sets the
+// saved fields directly, so no random numbers are drawn. Transient fields
+// are derived from the saved ones, and are rebuilt by finish.
+final class TreeCodec
+{
+    static final int VERSION = 1;
+    // ancillary, private and safe to copy, in PNG's chunk naming
+    static final String PNG_CHUNK = "sfTr";
+    // well beyond any generated tree, but short of the stack
+    static final int MAX_DEPTH = 4096;
+
+    private static final byte[] MAGIC = {'S', 'F', 'T', VERSION};
+    private static final byte[] PNG_SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'};
+
+    // A node's index here is its tag in saved trees: only ever append.
+    private static final Class<?>[] NODE_TYPES = {
+        Coswave.class, Sawtooth.class, Ess.class, InvertWave.class,
+        InsertWavePeaks.class, Modulator.class, MixLinear.class, MinimaxLinear.class,
+        MultiplyLinear.class, GammaLinear.class, Pebbledrop.class, Curtain.class,
+        Zigzag.class, Starfish2.class, Spinflake.class, InvertPlane.class,
+        MinimaxPlanar.class, MixPlanar.class, WarpPlane.class, Reflector.class,
+        GammaPlanar.class, MultiplyPlanar.class, Quadratesselator.class, Hexatesselator.class,
+        Rotawarp.class, Mixmaster.class, Gradientor.class, Compositor.class
+    };
+    private static final Constructor<?>[] CONSTRUCTORS = new Constructor<?>[NODE_TYPES.length];
+    private static final Field[][] FIELDS = new Field[NODE_TYPES.length][];
+    // every instance field, for shallowCopy
+    private static final Field[][] ALL_FIELDS = new Field[NODE_TYPES.length][];
+    private static final StarfishPalette PLACEHOLDER_PALETTE = new StarfishPalette();
+
+    static
+    {
+        PLACEHOLDER_PALETTE.colourCount = 2;
+        PLACEHOLDER_PALETTE.colour[0] = new pixel(0, 0, 0);
+        PLACEHOLDER_PALETTE.colour[1] = new pixel(0, 0, 0);
+        for (int t = 0; t < NODE_TYPES.length; t++)
+        {
+            CONSTRUCTORS[t] = NODE_TYPES[t].getDeclaredConstructors()[0];
+            List<Field> fields = new ArrayList<Field>();
+            List<Field> all = new ArrayList<Field>();
+            for (Field f : NODE_TYPES[t].getDeclaredFields())
+            {
+                int modifiers = f.getModifiers();
+                if (!Modifier.isStatic(modifiers))
+                {
+                    all.add(f);
+                }
+                if (!Modifier.isStatic(modifiers) && !Modifier.isTransient(modifiers)
+                        && f.getName().startsWith("m"))
+                {
+                    Class<?> type = f.getType();
+                    if (type != double.class && type != int.class && type != boolean.class
+                            && type != pixel.class && !isNode(type))
+                    {
+                        throw new IllegalStateException("cannot save " + f);
+                    }
+                    fields.add(f);
+                }
+            }
+            Collections.sort(fields, new Comparator<Field>()
+            {
+                public int compare(Field a, Field b)
+                {
+                    return a.getName().compareTo(b.getName());
+                }
+            });
+            FIELDS[t] = fields.toArray(new Field[fields.size()]);
+            ALL_FIELDS[t] = all.toArray(new Field[all.size()]);
+        }
+    }
+
+    private TreeCodec()
+    {
+    }
+
+    private static boolean isNode(Class<?> type)
+    {
+        return type == LinearWave.class || type == PlanarWave.class || type == ImageLayer.class;
+    }
+
+    private static int tag(Object node)
+    {
+        for (int t = 0; t < NODE_TYPES.length; t++)
+        {
+            if (NODE_TYPES[t] == node.getClass())
+            {
+                return t;
+            }
+        }
+        throw new IllegalArgumentException("cannot save a " + node.getClass().getSimpleName());
+    }
+
+    private static Object newNode(int tag) throws IOException
+    {
+        Class<?>[] params = CONSTRUCTORS[tag].getParameterTypes();
+        Object[] args = new Object[params.length];
+        for (int i = 0; i < params.length; i++)
+        {
+            if (params[i] == SplittableRandom.class) args[i] = new SplittableRandom(0);
+            else if (params[i] == StarfishPalette.class) args[i] = PLACEHOLDER_PALETTE;
+            else if (params[i] == boolean.class) args[i] = Boolean.FALSE;
+        }
+        try
+        {
+            return CONSTRUCTORS[tag].newInstance(args);
+        }
+        catch (ReflectiveOperationException e)
+        {
+            throw new IOException("cannot make a " + NODE_TYPES[tag].getSimpleName(), e);
+        }
+    }
+
+    static byte[] encode(StarfishEngine engine)
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try
+        {
+            out.write(MAGIC);
+            out.writeLong(engine.mSeed);
+            out.writeByte(engine.mWrapMode.ordinal());
+            out.writeByte(engine.mAAMode.ordinal());
+            out.writeBoolean(engine.mFastMath);
+            writeNode(out, engine.mTree);
+        }
+        catch (IOException e)
+        {
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    // A deep copy of a generated tree, for passes that rewrite it in place.
+    static ImageLayer copy(ImageLayer tree)
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try
+        {
+            writeNode(new DataOutputStream(bytes), tree);
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+            return (ImageLayer) readNode(in, ImageLayer.class, 0);
+        }
+        catch (IOException e)
+        {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // A node of the same type with the same fields, transient ones
+    // included, and so the same children, for passes that swap a child
+    // without touching the tree it came from.
+    static Object shallowCopy(Object node)
+    {
+        int tag = tag(node);
+        try
+        {
+            Object copy = newNode(tag);
+            for (Field f : ALL_FIELDS[tag])
+            {
+                f.set(copy, f.get(node));
+            }
+            return copy;
+        }
+        catch (IOException | IllegalAccessException e)
+        {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void writeNode(DataOutputStream out, Object node) throws IOException
+    {
+        int tag = tag(node);
+        out.writeByte(tag);
+        try
+        {
+            for (Field f : FIELDS[tag])
+            {
+                Class<?> type = f.getType();
+                if (type == double.class) out.writeDouble(f.getDouble(node));
+                else if (type == int.class) out.writeInt(f.getInt(node));
+                else if (type == boolean.class) out.writeBoolean(f.getBoolean(node));
+                else if (type == pixel.class)
+                {
+                    pixel p = (pixel) f.get(node);
+                    out.writeByte(p.red);
+                    out.writeByte(p.green);
+                    out.writeByte(p.blue);
+                }
+                else writeNode(out, f.get(node));
+            }
+        }
+        catch (IllegalAccessException e)
+        {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static StarfishEngine decode(byte[] data, int width, int height) throws IOException
+    {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        try
+        {
+            for (int i = 0; i < MAGIC.length; i++)
+            {
+                if (in.readByte() != MAGIC[i])
+                {
+                    throw new IOException("not a version " + VERSION + " Starfish tree");
+                }
+            }
+            long seed = in.readLong();
+            WrapMode wrapMode = (WrapMode) readEnum(WrapMode.values(), in.readUnsignedByte());
+            AAMode aamode = (AAMode) readEnum(AAMode.values(), in.readUnsignedByte());
+            boolean fastMath = in.readBoolean();
+            ImageLayer tree = (ImageLayer) readNode(in, ImageLayer.class, 0);
+            return new StarfishEngine(width, height, tree, wrapMode, aamode, seed, fastMath);
+        }
+        catch (EOFException e)
+        {
+            throw new IOException("truncated Starfish tree", e);
+        }
+    }
+
+    private static Object readEnum(Object[] values, int ordinal) throws IOException
+    {
+        if (ordinal >= values.length)
+        {
+            throw new IOException("bad setting in Starfish tree: " + ordinal);
+        }
+        return values[ordinal];
+    }
+
+    private static Object readNode(DataInputStream in, Class<?> kind, int depth) throws IOException
+    {
+        int tag = in.readUnsignedByte();
+        if (tag >= NODE_TYPES.length || !kind.isAssignableFrom(NODE_TYPES[tag]))
+        {
+            throw new IOException("bad node in Starfish tree: " + tag);
+        }
+        if (depth > MAX_DEPTH)
+        {
+            throw new IOException("Starfish tree too deep");
+        }
+        Object node = newNode(tag);
+        try
+        {
+            for (Field f : FIELDS[tag])
+            {
+                Class<?> type = f.getType();
+                if (type == double.class) f.setDouble(node, in.readDouble());
+                else if (type == int.class) f.setInt(node, in.readInt());
+                else if (type == boolean.class) f.setBoolean(node, in.readBoolean());
+                else if (type == pixel.class)
+                {
+                    f.set(node, new pixel(in.readUnsignedByte(), in.readUnsignedByte(),
+                            in.readUnsignedByte()));
+                }
+                else f.set(node, readNode(in, type, depth + 1));
+            }
+        }
+        catch (IllegalAccessException e)
+        {
+            throw new IllegalStateException(e);
+        }
+        return finish(node);
+    }
+
+    // Rebuilds what the constructor derived from its placeholder arguments.
+    private static Object finish(Object node)
+    {
+        if (node instanceof Gradientor)
+        {
+            ((Gradientor) node).initRamp();
+        }
+        return node;
+    }
+
+    static String toJson(StarfishEngine engine)
+    {
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\n  \"format\": \"starfish-tree\",\n  \"version\": ").append(VERSION);
+        sb.append(",\n  \"seed\": ").append(engine.mSeed);
+        sb.append(",\n  \"wrap\": \"").append(engine.mWrapMode.name());
+        sb.append("\",\n  \"aa\": \"").append(engine.mAAMode.name());
+        sb.append("\",\n  \"fastMath\": ").append(engine.mFastMath);
+        sb.append(",\n  \"tree\": ");
+        appendNode(sb, engine.mTree, "  ");
+        sb.append("\n}\n");
+        return sb.toString();
+    }
+
+    private static void appendNode(StringBuilder sb, Object node, String indent)
+    {
+        int tag = tag(node);
+        String inner = indent + "  ";
+        sb.append("{\n").append(inner).append("\"type\": \"")
+                .append(NODE_TYPES[tag].getSimpleName()).append('"');
+        try
+        {
+            for (Field f : FIELDS[tag])
+            {
+                sb.append(",\n").append(inner).append('"').append(f.getName()).append("\": ");
+                Object value = f.get(node);
+                if (value instanceof pixel)
+                {
+                    pixel p = (pixel) value;
+                    sb.append(String.format("\"#%02x%02x%02x\"", p.red, p.green, p.blue));
+                }
+                else if (isNode(f.getType())) appendNode(sb, value, inner);
+                else if (value instanceof Double && !Double.isFinite((Double) value))
+                {
+                    throw new IllegalArgumentException(f.getName() + " is " + value);
+                }
+                else sb.append(value);
+            }
+        }
+        catch (IllegalAccessException e)
+        {
+            throw new IllegalStateException(e);
+        }
+        sb.append('\n').append(indent).append('}');
+    }
+
+    static StarfishEngine fromJson(String json, int width, int height) throws IOException
+    {
+        Map<String, Object> doc = asObject(new JsonReader(json).readDocument(), "document");
+        if (!"starfish-tree".equals(doc.get("format")))
+        {
+            throw new IOException("not a Starfish tree");
+        }
+        if (asNumber(doc.get("version"), "version").intValue() != VERSION)
+        {
+            throw new IOException("not a version " + VERSION + " Starfish tree");
+        }
+        try
+        {
+            return new StarfishEngine(width, height,
+                    (ImageLayer) jsonNode(doc.get("tree"), ImageLayer.class, 0),
+                    WrapMode.valueOf(asString(doc.get("wrap"), "wrap")),
+                    AAMode.valueOf(asString(doc.get("aa"), "aa")),
+                    asNumber(doc.get("seed"), "seed").longValueExact(),
+                    Boolean.TRUE.equals(doc.get("fastMath")));
+        }
+        catch (IllegalArgumentException | ArithmeticException e)
+        {
+            throw new IOException("bad Starfish tree: " + e.getMessage(), e);
+        }
+    }
+
+    private static Object jsonNode(Object value, Class<?> kind, int depth) throws IOException
+    {
+        Map<String, Object> map = asObject(value, "node");
+        String type = asString(map.get("type"), "type");
+        int tag = -1;
+        for (int t = 0; t < NODE_TYPES.length; t++)
+        {
+            if (NODE_TYPES[t].getSimpleName().equals(type))
+            {
+                tag = t;
+            }
+        }
+        if (tag < 0 || !kind.isAssignableFrom(NODE_TYPES[tag]))
+        {
+            throw new IOException("bad node in Starfish tree: " + type);
+        }
+        if (depth > MAX_DEPTH)
+        {
+            throw new IOException("Starfish tree too deep");
+        }
+        Object node = newNode(tag);
+        try
+        {
+            for (Field f : FIELDS[tag])
+            {
+                Object v = map.get(f.getName());
+                String name = type + "." + f.getName();
+                Class<?> ft = f.getType();
+                if (ft == double.class) f.setDouble(node, asNumber(v, name).doubleValue());
+                else if (ft == int.class) f.setInt(node, asNumber(v, name).intValueExact());
+                else if (ft == boolean.class)
+                {
+                    if (!(v instanceof Boolean))
+                    {
+                        throw new IOException(name + " should be true or false");
+                    }
+                    f.setBoolean(node, (Boolean) v);
+                }
+                else if (ft == pixel.class)
+                {
+                    String s = asString(v, name);
+                    if (!s.matches("#[0-9a-fA-F]{6}"))
+                    {
+                        throw new IOException(name + " should be a #rrggbb colour");
+                    }
+                    int c = Integer.parseInt(s.substring(1), 16);
+                    f.set(node, new pixel((c >> 16) & 0xFF, (c >> 8) & 0xFF, c & 0xFF));
+                }
+                else f.set(node, jsonNode(v, ft, depth + 1));
+            }
+        }
+        catch (IllegalAccessException e)
+        {
+            throw new IllegalStateException(e);
+        }
+        catch (ArithmeticException e)
+        {
+            throw new IOException("bad number in Starfish tree", e);
+        }
+        return finish(node);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> asObject(Object v, String name) throws IOException
+    {
+        if (!(v instanceof Map))
+        {
+            throw new IOException(name + " should be an object");
+        }
+        return (Map<String, Object>) v;
+    }
+
+    private static String asString(Object v, String name) throws IOException
+    {
+        if (!(v instanceof String))
+        {
+            throw new IOException(name + " should be a string");
+        }
+        return (String) v;
+    }
+
+    private static BigDecimal asNumber(Object v, String name) throws IOException
+    {
+        if (!(v instanceof BigDecimal))
+        {
+            throw new IOException(name + " should be a number");
+        }
+        return (BigDecimal) v;
+    }
+
+    // The tree embedded in a PNG by PngEncoder, or null if it has none. Only
+    // the chunks before the image data are read.
+    static byte[] readPng(InputStream is) throws IOException
+    {
+        DataInputStream in = new DataInputStream(is);
+        byte[] signature = new byte[PNG_SIGNATURE.length];
+        in.readFully(signature);
+        if (!Arrays.equals(signature, PNG_SIGNATURE))
+        {
+            throw new IOException("not a PNG");
+        }
+        while (true)
+        {
+            int length = in.readInt();
+            byte[] type = new byte[4];
+            in.readFully(type);
+            String name = new String(type, StandardCharsets.US_ASCII);
+            if (name.equals("IDAT") || name.equals("IEND") || length < 0)
+            {
+                return null;
+            }
+            if (name.equals(PNG_CHUNK))
+            {
+                byte[] data = new byte[length];
+                in.readFully(data);
+                return data;
+            }
+            in.skipNBytes(length + 4L);
+        }
+    }
+
+    // Reads a tree saved in either form, or embedded in a PNG, and builds an
+    // engine to render it at the given size.
+    static StarfishEngine load(File file, int width, int height) throws IOException
+    {
+        byte[] data = Files.readAllBytes(file.toPath());
+        if (data.length > 0 && data[0] == PNG_SIGNATURE[0])
+        {
+            data = readPng(new ByteArrayInputStream(data));
+            if (data == null)
+            {
+                throw new IOException(file + " has no Starfish tree in it");
+            }
+        }
+        if (data.length > 0 && data[0] == MAGIC[0])
+        {
+            return decode(data, width, height);
+        }
+        String text = new String(data, StandardCharsets.UTF_8);
+        if (!text.trim().startsWith("{"))
+        {
+            throw new IOException(file + " is not a Starfish tree");
+        }
+        return fromJson(text, width, height);
+    }
+
+    // Reads back the JSON that toJson writes: objects, strings without
+    // escapes beyond \" and \\, numbers, true, false and null.
+    static class JsonReader
+    {
+        String mText;
+        int mPos;
+
+        JsonReader(String text)
+        {
+            mText = text;
+        }
+
+        Object readDocument() throws IOException
+        {
+            Object v = readValue();
+            skipSpace();
+            if (mPos != mText.length())
+            {
+                throw error("trailing text");
+            }
+            return v;
+        }
+
+        Object readValue() throws IOException
+        {
+            skipSpace();
+            if (mPos >= mText.length())
+            {
+                throw error("unexpected end");
+            }
+            char c = mText.charAt(mPos);
+            if (c == '{') return readObject();
+            if (c == '"') return readString();
+            if (mText.startsWith("true", mPos)) { mPos += 4; return Boolean.TRUE; }
+            if (mText.startsWith("false", mPos)) { mPos += 5; return Boolean.FALSE; }
+            if (mText.startsWith("null", mPos)) { mPos += 4; return null; }
+            int start = mPos;
+            while (mPos < mText.length() && "+-.0123456789eE".indexOf(mText.charAt(mPos)) >= 0)
+            {
+                mPos++;
+            }
+            try
+            {
+                return new BigDecimal(mText.substring(start, mPos));
+            }
+            catch (NumberFormatException e)
+            {
+                throw error("unexpected '" + c + "'");
+            }
+        }
+
+        Map<String, Object> readObject() throws IOException
+        {
+            Map<String, Object> out = new LinkedHashMap<String, Object>();
+            mPos++;
+            skipSpace();
+            if (mPos < mText.length() && mText.charAt(mPos) == '}')
+            {
+                mPos++;
+                return out;
+            }
+            while (true)
+            {
+                skipSpace();
+                if (mPos >= mText.length() || mText.charAt(mPos) != '"')
+                {
+                    throw error("expected a name");
+                }
+                String name = readString();
+                expect(':');
+                out.put(name, readValue());
+                skipSpace();
+                if (mPos < mText.length() && mText.charAt(mPos) == ',')
+                {
+                    mPos++;
+                    continue;
+                }
+                expect('}');
+                return out;
+            }
+        }
+
+        String readString() throws IOException
+        {
+            StringBuilder sb = new StringBuilder();
+            mPos++;
+            while (mPos < mText.length())
+            {
+                char c = mText.charAt(mPos++);
+                if (c == '"')
+                {
+                    return sb.toString();
+                }
+                if (c == '\\' && mPos < mText.length())
+                {
+                    c = mText.charAt(mPos++);
+                    if (c != '"' && c != '\\')
+                    {
+                        throw error("unsupported escape \\" + c);
+                    }
+                }
+                sb.append(c);
+            }
+            throw error("unterminated string");
+        }
+
+        void expect(char c) throws IOException
+        {
+            skipSpace();
+            if (mPos >= mText.length() || mText.charAt(mPos) != c)
+            {
+                throw error("expected '" + c + "'");
+            }
+            mPos++;
+        }
+
+        void skipSpace()
+        {
+            while (mPos < mText.length() && Character.isWhitespace(mText.charAt(mPos)))
+            {
+                mPos++;
+            }
+        }
+
+        IOException error(String message)
+        {
+            return new IOException("bad JSON at " + mPos + ": " + message);
+        }
+    }
+}
+
+// Rewrites a generated tree, in place and bottom up, into one with fewer
+// nodes that computes the same thing:
+//     InvertWave(InvertWave(x)), InvertPlane(InvertPlane(x))   -> x
+// and, when relaxed or lossy,
+//     Gamma(e2, Gamma(e1, x))                                  -> Gamma(e1 * e2, x)
+//     Mixmaster(Mixmaster(x)), also through InvertPlane and
+//     GammaPlanar, which do not look at the coordinates         -> one Mixmaster
+// and, only when lossy,
+//     a mix that gives one side less than NEGLIGIBLE weight    -> the other side
+// The relaxed rewrites round differently from the nodes they replace, so
+// samples move by a few ULPs; the gamma fold is the more accurate of the
+// two, as it skips the rounding of the intermediate value. Dropping a mix
+// loses the weaker side outright, which is why it is a mode of its own.
+final class Simplifier
+{
+    // moves a sample by at most 2 * NEGLIGIBLE, a sixteenth of a colour level
+    static final double NEGLIGIBLE = 1.0 / 4096.0;
+
+    private Simplifier()
+    {
+    }
+
+    static ImageLayer simplify(ImageLayer root, SimplifyMode mode)
+    {
+        return (ImageLayer) rewrite(root, mode);
+    }
+
+    private static Object rewrite(Object node, SimplifyMode mode)
+    {
+        try
+        {
+            for (Field f : TreeNodes.childFields(node))
+            {
+                f.set(node, rewrite(f.get(node), mode));
+            }
+        }
+        catch (IllegalAccessException e)
+        {
+            throw new IllegalStateException(e);
+        }
+        if (node instanceof InvertWave && ((InvertWave) node).mSource instanceof InvertWave)
+        {
+            return ((InvertWave) ((InvertWave) node).mSource).mSource;
+        }
+        if (node instanceof InvertPlane && ((InvertPlane) node).mSource instanceof InvertPlane)
+        {
+            return ((InvertPlane) ((InvertPlane) node).mSource).mSource;
+        }
+        if (mode == SimplifyMode.SIMPLIFY_EXACT)
+        {
+            return node;
+        }
+        if (node instanceof GammaLinear && ((GammaLinear) node).mSource instanceof GammaLinear)
+        {
+            GammaLinear outer = (GammaLinear) node;
+            GammaLinear inner = (GammaLinear) outer.mSource;
+            inner.mExp *= outer.mExp;
+            return inner;
+        }
+        if (node instanceof GammaPlanar && ((GammaPlanar) node).mSource instanceof GammaPlanar)
+        {
+            GammaPlanar outer = (GammaPlanar) node;
+            GammaPlanar inner = (GammaPlanar) outer.mSource;
+            inner.mExp *= outer.mExp;
+            return inner;
+        }
+        if (node instanceof MixLinear && mode == SimplifyMode.SIMPLIFY_LOSSY)
+        {
+            MixLinear m = (MixLinear) node;
+            if (m.mAFactor < NEGLIGIBLE * m.mSumFactor) return m.mBWave;
+            if (m.mBFactor < NEGLIGIBLE * m.mSumFactor) return m.mAWave;
+        }
+        if (node instanceof MixPlanar && mode == SimplifyMode.SIMPLIFY_LOSSY)
+        {
+            MixPlanar m = (MixPlanar) node;
+            if (m.mABias < NEGLIGIBLE) return m.mBSrc;
+            if (m.mBBias < NEGLIGIBLE) return m.mASrc;
+        }
+        if (node instanceof Mixmaster)
+        {
+            Mixmaster outer = (Mixmaster) node;
+            Object below = outer.mSource;
+            while (below instanceof InvertPlane || below instanceof GammaPlanar)
+            {
+                below = (below instanceof InvertPlane) ?
+                        ((InvertPlane) below).mSource : ((GammaPlanar) below).mSource;
+            }
+            if (below instanceof Mixmaster)
+            {
+                fold(outer, (Mixmaster) below);
+                return outer.mSource;
+            }
+        }
+        return node;
+    }
+
+    // Makes inner do the work of outer followed by inner. Outer maps p to
+    // M1 (p + a) and inner maps that to M2 (q + b), which is
+    // M2 M1 (p + a + M1^-1 b).
+    private static void fold(Mixmaster outer, Mixmaster inner)
+    {
+        double a1 = outer.mCosXFact, b1 = -outer.mSinXFact;
+        double c1 = outer.mSinYFact, d1 = outer.mCosYFact;
+        double a2 = inner.mCosXFact, b2 = -inner.mSinXFact;
+        double c2 = inner.mSinYFact, d2 = inner.mCosYFact;
+        double det = a1 * d1 - b1 * c1;
+        double bx = inner.mXOff, by = inner.mYOff;
+        inner.mXOff = outer.mXOff + (d1 * bx - b1 * by) / det;
+        inner.mYOff = outer.mYOff + (a1 * by - c1 * bx) / det;
+        inner.mCosXFact = a2 * a1 + b2 * c1;
+        inner.mSinXFact = -(a2 * b1 + b2 * d1);
+        inner.mSinYFact = c2 * a1 + d2 * c1;
+        inner.mCosYFact = c2 * b1 + d2 * d1;
+    }
+}
+
+// Works out, by interval arithmetic, a range that holds every value a wave
+// can take over a rectangle of the plane, and uses it to cut away the parts
+// of a tree that cannot show there:
+//     Compositor whose mask weight is at most ONLY_A throughout    -> A
+//     Compositor whose mask weight is at least ONLY_B throughout   -> B
+//     Minimax with one side strictly beyond the other throughout   -> that side
+// each of which gives back exactly what the node itself would. A range is
+// worked out with the node's own floating point operations in the node's
+// own order, all of which are monotonic, so it holds for the values the
+// node really computes and not just in exact arithmetic. The functions
+// that are only semi-monotonic or approximate get SLACK either side, or
+// FAST_SLACK for FastMath. [-inf, inf] stands for nothing known, not even
+// that the value is a number, and nothing is decided on it; nodes this
+// does not know, such as compiled or profiled ones, give it and are kept
+// whole. Nodes that lose a child are copied, leaving the tree passed in as
+// it was.
+final class Bounds
+{
+    // relative, with a floor of this much absolute
+    static final double SLACK = 1e-9;
+    static final double FAST_SLACK = 1e-6;
+    // past this a cosine's argument is too coarse to find its peaks
+    private static final double MAX_ANGLE = 1e6;
+    private static final double TWO_PI = 2.0 * Math.PI;
+
+    private Bounds()
+    {
+    }
+
+    // root cut down to what can show over [x0, x1] x [y0, y1], or root
+    // itself if nothing can be cut
+    static ImageLayer prune(ImageLayer root, double x0, double x1, double y0, double y1)
+    {
+        return layer(root, x0, x1, y0, y1, new double[2]);
+    }
+
+    private static ImageLayer layer(ImageLayer node, double x0, double x1, double y0, double y1, double[] r)
+    {
+        if (!finite(x0, x1) || !finite(y0, y1))
+        {
+            return node;
+        }
+        if (node instanceof Gradientor)
+        {
+            Gradientor g = (Gradientor) node;
+            PlanarWave source = planar(g.mSource, x0, x1, y0, y1, r);
+            if (source != g.mSource)
+            {
+                g = (Gradientor) TreeCodec.shallowCopy(g);
+                g.mSource = source;
+            }
+            return g;
+        }
+        if (node instanceof Compositor)
+        {
+            Compositor c = (Compositor) node;
+            PlanarWave mask = planar(c.mMask, x0, x1, y0, y1, r);
+            if (finite(r[0], r[1]) && Compositor.weight(r[1]) <= Compositor.ONLY_A)
+            {
+                return layer(c.mSrcA, x0, x1, y0, y1, r);
+            }
+            if (finite(r[0], r[1]) && Compositor.weight(r[0]) >= Compositor.ONLY_B)
+            {
+                return layer(c.mSrcB, x0, x1, y0, y1, r);
+            }
+            ImageLayer a = layer(c.mSrcA, x0, x1, y0, y1, r);
+            ImageLayer b = layer(c.mSrcB, x0, x1, y0, y1, r);
+            if (mask != c.mMask || a != c.mSrcA || b != c.mSrcB)
+            {
+                c = (Compositor) TreeCodec.shallowCopy(c);
+                c.mMask = mask;
+                c.mSrcA = a;
+                c.mSrcB = b;
+            }
+            return c;
+        }
+        if (node instanceof AntialiasImage)
+        {
+            // samples from (x, y) to (x + mDX, y + mDY)
+            AntialiasImage aa = (AntialiasImage) node;
+            ImageLayer source = layer(aa.mSource, x0, x1 + aa.mDX, y0, y1 + aa.mDY, r);
+            if (source != aa.mSource)
+            {
+                AntialiasImage copy = new AntialiasImage(source, 1, 1, aa.mMode);
+                copy.mDX = aa.mDX;
+                copy.mDY = aa.mDY;
+                return copy;
+            }
+            return aa;
+        }
+        return node;
+    }
+
+    private static PlanarWave planar(PlanarWave node, double x0, double x1, double y0, double y1, double[] r)
+    {
+        if (!finite(x0, x1) || !finite(y0, y1))
+        {
+            any(r);
+            return node;
+        }
+        if (node instanceof Mixmaster)
+        {
+            Mixmaster m = (Mixmaster) node;
+            double u0 = x0 + m.mXOff;
+            double u1 = x1 + m.mXOff;
+            double v0 = y0 + m.mYOff;
+            double v1 = y1 + m.mYOff;
+            double tx0 = Math.min(u0 * m.mCosXFact, u1 * m.mCosXFact) - Math.max(v0 * m.mSinXFact, v1 * m.mSinXFact);
+            double tx1 = Math.max(u0 * m.mCosXFact, u1 * m.mCosXFact) - Math.min(v0 * m.mSinXFact, v1 * m.mSinXFact);
+            double ty0 = Math.min(u0 * m.mSinYFact, u1 * m.mSinYFact) + Math.min(v0 * m.mCosYFact, v1 * m.mCosYFact);
+            double ty1 = Math.max(u0 * m.mSinYFact, u1 * m.mSinYFact) + Math.max(v0 * m.mCosYFact, v1 * m.mCosYFact);
+            PlanarWave source = planar(m.mSource, tx0, tx1, ty0, ty1, r);
+            if (source != m.mSource)
+            {
+                m = (Mixmaster) TreeCodec.shallowCopy(m);
+                m.mSource = source;
+            }
+            return m;
+        }
+        if (node instanceof InvertPlane)
+        {
+            InvertPlane inv = (InvertPlane) node;
+            PlanarWave source = planar(inv.mSource, x0, x1, y0, y1, r);
+            set(r, -r[1], -r[0]);
+            if (source != inv.mSource)
+            {
+                inv = (InvertPlane) TreeCodec.shallowCopy(inv);
+                inv.mSource = source;
+            }
+            return inv;
+        }
+        if (node instanceof MinimaxPlanar)
+        {
+            MinimaxPlanar mm = (MinimaxPlanar) node;
+            PlanarWave a = planar(mm.mASrc, x0, x1, y0, y1, r);
+            double a0 = r[0];
+            double a1 = r[1];
+            PlanarWave b = planar(mm.mBSrc, x0, x1, y0, y1, r);
+            double b0 = r[0];
+            double b1 = r[1];
+            if (finite(a0, a1) && finite(b0, b1))
+            {
+                if (mm.mMin ? a1 < b0 : a0 > b1)
+                {
+                    set(r, a0, a1);
+                    return a;
+                }
+                if (mm.mMin ? b1 < a0 : b0 > a1)
+                {
+                    set(r, b0, b1);
+                    return b;
+                }
+            }
+            if (mm.mMin)
+            {
+                set(r, Math.min(a0, b0), Math.min(a1, b1));
+            }
+            else
+            {
+                set(r, Math.max(a0, b0), Math.max(a1, b1));
+            }
+            if (a != mm.mASrc || b != mm.mBSrc)
+            {
+                mm = (MinimaxPlanar) TreeCodec.shallowCopy(mm);
+                mm.mASrc = a;
+                mm.mBSrc = b;
+            }
+            return mm;
+        }
+        if (node instanceof MixPlanar)
+        {
+            MixPlanar mix = (MixPlanar) node;
+            PlanarWave a = planar(mix.mASrc, x0, x1, y0, y1, r);
+            double a0 = r[0];
+            double a1 = r[1];
+            PlanarWave b = planar(mix.mBSrc, x0, x1, y0, y1, r);
+            set(r, Math.min(a0 * mix.mABias, a1 * mix.mABias) + Math.min(r[0] * mix.mBBias, r[1] * mix.mBBias),
+                    Math.max(a0 * mix.mABias, a1 * mix.mABias) + Math.max(r[0] * mix.mBBias, r[1] * mix.mBBias));
+            if (a != mix.mASrc || b != mix.mBSrc)
+            {
+                mix = (MixPlanar) TreeCodec.shallowCopy(mix);
+                mix.mASrc = a;
+                mix.mBSrc = b;
+            }
+            return mix;
+        }
+        if (node instanceof MultiplyPlanar)
+        {
+            MultiplyPlanar mul = (MultiplyPlanar) node;
+            PlanarWave a = planar(mul.mASrc, x0, x1, y0, y1, r);
+            double a0 = r[0];
+            double a1 = r[1];
+            PlanarWave b = planar(mul.mBSrc, x0, x1, y0, y1, r);
+            product(r, a0, a1, r[0], r[1]);
+            if (a != mul.mASrc || b != mul.mBSrc)
+            {
+                mul = (MultiplyPlanar) TreeCodec.shallowCopy(mul);
+                mul.mASrc = a;
+                mul.mBSrc = b;
+            }
+            return mul;
+        }
+        if (node instanceof GammaPlanar)
+        {
+            GammaPlanar gamma = (GammaPlanar) node;
+            PlanarWave source = planar(gamma.mSource, x0, x1, y0, y1, r);
+            gamma(r, gamma.mExp);
+            if (source != gamma.mSource)
+            {
+                gamma = (GammaPlanar) TreeCodec.shallowCopy(gamma);
+                gamma.mSource = source;
+            }
+            return gamma;
+        }
+        if (node instanceof WarpPlane)
+        {
+            WarpPlane warp = (WarpPlane) node;
+            LinearWave modulator = linear(warp.mModulator,
+                    Math.min(x0 * warp.mAcceleration, x1 * warp.mAcceleration),
+                    Math.max(x0 * warp.mAcceleration, x1 * warp.mAcceleration), r);
+            double w0 = r[0];
+            double w1 = r[1];
+            double near = absLo(y0, y1);
+            double far = absHi(y0, y1);
+            double amp0 = warp.mAmplitude / (warp.mAttenuation * near * near + 1.0);
+            double amp1 = warp.mAmplitude / (warp.mAttenuation * far * far + 1.0);
+            PlanarWave source = warp.mSource;
+            if (warp.mAttenuation >= 0)
+            {
+                product(r, w0, w1, Math.min(amp0, amp1), Math.max(amp0, amp1));
+                source = planar(warp.mSource, x0, x1, y0 + r[0], y1 + r[1], r);
+            }
+            else
+            {
+                any(r);
+            }
+            if (modulator != warp.mModulator || source != warp.mSource)
+            {
+                warp = (WarpPlane) TreeCodec.shallowCopy(warp);
+                warp.mModulator = modulator;
+                warp.mSource = source;
+            }
+            return warp;
+        }
+        if (node instanceof Reflector)
+        {
+            Reflector ref = (Reflector) node;
+            double ty0 = y0;
+            double ty1 = y1;
+            if (ref.mMode == 0 && x1 < 0)
+            {
+                ty0 = -y1;
+                ty1 = -y0;
+            }
+            else if (ref.mMode == 0 && !(x0 >= 0))
+            {
+                ty0 = Math.min(y0, -y1);
+                ty1 = Math.max(y1, -y0);
+            }
+            else if (ref.mMode == 1)
+            {
+                ty0 = absLo(y0, y1);
+                ty1 = absHi(y0, y1);
+            }
+            PlanarWave source = planar(ref.mSource, absLo(x0, x1), absHi(x0, x1), ty0, ty1, r);
+            if (source != ref.mSource)
+            {
+                ref = (Reflector) TreeCodec.shallowCopy(ref);
+                ref.mSource = source;
+            }
+            return ref;
+        }
+        if (node instanceof Quadratesselator)
+        {
+            Quadratesselator quad = (Quadratesselator) node;
+            cell(x0, x1, quad.mHSize, r);
+            double tx0 = r[0];
+            double tx1 = r[1];
+            cell(y0, y1, quad.mVSize, r);
+            PlanarWave source = planar(quad.mSource, tx0, tx1, r[0], r[1], r);
+            if (source != quad.mSource)
+            {
+                quad = (Quadratesselator) TreeCodec.shallowCopy(quad);
+                quad.mSource = source;
+            }
+            return quad;
+        }
+        if (node instanceof Hexatesselator)
+        {
+            Hexatesselator hex = (Hexatesselator) node;
+            double[] box = new double[4];
+            hexagon(hex, x0, x1, y0, y1, box);
+            PlanarWave source = planar(hex.mSource, box[0], box[1], box[2], box[3], r);
+            if (source != hex.mSource)
+            {
+                hex = (Hexatesselator) TreeCodec.shallowCopy(hex);
+                hex.mSource = source;
+            }
+            return hex;
+        }
+        if (node instanceof Rotawarp)
+        {
+            Rotawarp rot = (Rotawarp) node;
+            double h0 = hypotLo(x0, x1, y0, y1);
+            double h1 = hypotHi(x0, x1, y0, y1);
+            LinearWave warp = linear(rot.mWarp, h0, h1, r);
+            product(r, r[0], r[1], rot.mAmplitude, rot.mAmplitude);
+            double p0 = r[0];
+            double p1 = r[1];
+            angle(x0, x1, y0, y1, rot.mFastMath, r);
+            double a0 = r[0] + p0;
+            double a1 = r[1] + p1;
+            cos(a0, a1, rot.mFastMath, r);
+            product(r, h0, h1, r[0], r[1]);
+            double tx0 = r[0];
+            double tx1 = r[1];
+            // sin(a) is cos(a - pi / 2), exactly so for FastMath
+            cos(a0 - Math.PI / 2.0, a1 - Math.PI / 2.0, rot.mFastMath, r);
+            product(r, h0, h1, r[0], r[1]);
+            PlanarWave source = planar(rot.mSource, tx0, tx1, r[0], r[1], r);
+            if (warp != rot.mWarp || source != rot.mSource)
+            {
+                rot = (Rotawarp) TreeCodec.shallowCopy(rot);
+                rot.mWarp = warp;
+                rot.mSource = source;
+            }
+            return rot;
+        }
+        if (node instanceof Pebbledrop)
+        {
+            Pebbledrop pebble = (Pebbledrop) node;
+            LinearWave source = linear(pebble.mSource, hypotLo(x0, x1, y0, y1), hypotHi(x0, x1, y0, y1), r);
+            if (source != pebble.mSource)
+            {
+                pebble = (Pebbledrop) TreeCodec.shallowCopy(pebble);
+                pebble.mSource = source;
+            }
+            return pebble;
+        }
+        if (node instanceof Curtain)
+        {
+            Curtain curtain = (Curtain) node;
+            LinearWave source = linear(curtain.mSource, x0, x1, r);
+            if (source != curtain.mSource)
+            {
+                curtain = (Curtain) TreeCodec.shallowCopy(curtain);
+                curtain.mSource = source;
+            }
+            return curtain;
+        }
+        if (node instanceof Zigzag)
+        {
+            Zigzag zig = (Zigzag) node;
+            LinearWave oscillator = linear(zig.mOscillator, y0, y1, r);
+            product(r, r[0], r[1], zig.mAmplitude, zig.mAmplitude);
+            LinearWave source = linear(zig.mSource, x0 + r[0], x1 + r[1], r);
+            if (oscillator != zig.mOscillator || source != zig.mSource)
+            {
+                zig = (Zigzag) TreeCodec.shallowCopy(zig);
+                zig.mOscillator = oscillator;
+                zig.mSource = source;
+            }
+            return zig;
+        }
+        if (node instanceof Starfish2)
+        {
+            Starfish2 star = (Starfish2) node;
+            angle(x0, x1, y0, y1, star.mFastMath, r);
+            LinearWave oscillator = linear(star.mOscillator, Math.min(r[0] * star.mSpinRate, r[1] * star.mSpinRate),
+                    Math.max(r[0] * star.mSpinRate, r[1] * star.mSpinRate), r);
+            double w0 = r[0];
+            double w1 = r[1];
+            double h0 = hypotLo(x0, x1, y0, y1);
+            double h1 = hypotHi(x0, x1, y0, y1);
+            double amp0 = star.mAmplitude * (1.0 - (1.0 / (star.mAttenuation * h0 * h0 + 1.0)));
+            double amp1 = star.mAmplitude * (1.0 - (1.0 / (star.mAttenuation * h1 * h1 + 1.0)));
+            LinearWave source = star.mSource;
+            if (star.mAttenuation >= 0)
+            {
+                product(r, w0, w1, Math.min(amp0, amp1), Math.max(amp0, amp1));
+                source = linear(star.mSource, h0 + r[0], h1 + r[1], r);
+            }
+            else
+            {
+                any(r);
+            }
+            if (oscillator != star.mOscillator || source != star.mSource)
+            {
+                star = (Starfish2) TreeCodec.shallowCopy(star);
+                star.mOscillator = oscillator;
+                star.mSource = source;
+            }
+            return star;
+        }
+        if (node instanceof Spinflake)
+        {
+            Spinflake spin = (Spinflake) node;
+            angle(x0, x1, y0, y1, spin.mFastMath, r);
+            LinearWave source = linear(spin.mSource, r[0], r[1], r);
+            product(r, r[0], r[1], spin.mAmplitude, spin.mAmplitude);
+            spinflake(spin, hypotLo(x0, x1, y0, y1) + r[0], hypotHi(x0, x1, y0, y1) + r[1], r);
+            if (source != spin.mSource)
+            {
+                spin = (Spinflake) TreeCodec.shallowCopy(spin);
+                spin.mSource = source;
+            }
+            return spin;
+        }
+        any(r);
+        return node;
+    }
+
+    private static LinearWave linear(LinearWave node, double d0, double d1, double[] r)
+    {
+        if (!finite(d0, d1))
+        {
+            any(r);
+            return node;
+        }
+        if (node instanceof Coswave)
+        {
+            Coswave c = (Coswave) node;
+            double a0 = d0 * c.mPeriod + c.mPhase;
+            double a1 = d1 * c.mPeriod + c.mPhase;
+            cos(Math.min(a0, a1), Math.max(a0, a1), c.mFastMath, r);
+            return c;
+        }
+        if (node instanceof Sawtooth)
+        {
+            Sawtooth saw = (Sawtooth) node;
+            double v0 = (d0 + saw.mPhase) * saw.mPeriod;
+            double v1 = (d1 + saw.mPhase) * saw.mPeriod;
+            if (!finite(Math.min(v0, v1), Math.max(v0, v1)))
+            {
+                any(r);
+                return saw;
+            }
+            double f = Math.floor(Math.min(v0, v1));
+            if (f == Math.floor(Math.max(v0, v1)))
+            {
+                v0 = ((v0 - f) * 2.0) - 1.0;
+                v1 = ((v1 - f) * 2.0) - 1.0;
+                product(r, Math.min(v0, v1), Math.max(v0, v1), saw.mFlipSign, saw.mFlipSign);
+            }
+            else
+            {
+                product(r, -1.0, 1.0, saw.mFlipSign, saw.mFlipSign);
+            }
+            return saw;
+        }
+        if (node instanceof Ess)
+        {
+            Ess ess = (Ess) node;
+            if (!(ess.mAcceleration >= 0))
+            {
+                any(r);
+                return ess;
+            }
+            double near = absLo(d0, d1);
+            double far = absHi(d0, d1);
+            product(r, (2.0 / (ess.mAcceleration * far * far + 1.0)) - 1.0,
+                    (2.0 / (ess.mAcceleration * near * near + 1.0)) - 1.0, ess.mFlipSign, ess.mFlipSign);
+            return ess;
+        }
+        if (node instanceof InvertWave)
+        {
+            InvertWave inv = (InvertWave) node;
+            LinearWave source = linear(inv.mSource, d0, d1, r);
+            set(r, -r[1], -r[0]);
+            if (source != inv.mSource)
+            {
+                inv = (InvertWave) TreeCodec.shallowCopy(inv);
+                inv.mSource = source;
+            }
+            return inv;
+        }
+        if (node instanceof InsertWavePeaks)
+        {
+            InsertWavePeaks peaks = (InsertWavePeaks) node;
+            LinearWave source = linear(peaks.mSource, d0, d1, r);
+            peaks(r, peaks.mScale, peaks.mProcessSign);
+            if (source != peaks.mSource)
+            {
+                peaks = (InsertWavePeaks) TreeCodec.shallowCopy(peaks);
+                peaks.mSource = source;
+            }
+            return peaks;
+        }
+        if (node instanceof Modulator)
+        {
+            Modulator mod = (Modulator) node;
+            LinearWave wobbler = linear(mod.mWobbler, d0, d1, r);
+            LinearWave source = linear(mod.mSource, d0 + r[0], d1 + r[1], r);
+            if (wobbler != mod.mWobbler || source != mod.mSource)
+            {
+                mod = (Modulator) TreeCodec.shallowCopy(mod);
+                mod.mWobbler = wobbler;
+                mod.mSource = source;
+            }
+            return mod;
+        }
+        if (node instanceof MixLinear)
+        {
+            MixLinear mix = (MixLinear) node;
+            LinearWave a = linear(mix.mAWave, d0, d1, r);
+            double a0 = r[0];
+            double a1 = r[1];
+            LinearWave b = linear(mix.mBWave, d0, d1, r);
+            double s0 = Math.min(a0 * mix.mAFactor, a1 * mix.mAFactor) + Math.min(r[0] * mix.mBFactor, r[1] * mix.mBFactor);
+            double s1 = Math.max(a0 * mix.mAFactor, a1 * mix.mAFactor) + Math.max(r[0] * mix.mBFactor, r[1] * mix.mBFactor);
+            set(r, Math.min(s0 / mix.mSumFactor, s1 / mix.mSumFactor), Math.max(s0 / mix.mSumFactor, s1 / mix.mSumFactor));
+            if (a != mix.mAWave || b != mix.mBWave)
+            {
+                mix = (MixLinear) TreeCodec.shallowCopy(mix);
+                mix.mAWave = a;
+                mix.mBWave = b;
+            }
+            return mix;
+        }
+        if (node instanceof MinimaxLinear)
+        {
+            MinimaxLinear mm = (MinimaxLinear) node;
+            LinearWave a = linear(mm.mASrc, d0, d1, r);
+            double a0 = r[0];
+            double a1 = r[1];
+            LinearWave b = linear(mm.mBSrc, d0, d1, r);
+            double b0 = r[0];
+            double b1 = r[1];
+            if (finite(a0, a1) && finite(b0, b1))
+            {
+                if (mm.mMin ? a1 < b0 : a0 > b1)
+                {
+                    set(r, a0, a1);
+                    return a;
+                }
+                if (mm.mMin ? b1 < a0 : b0 > a1)
+                {
+                    set(r, b0, b1);
+                    return b;
+                }
+            }
+            if (mm.mMin)
+            {
+                set(r, Math.min(a0, b0), Math.min(a1, b1));
+            }
+            else
+            {
+                set(r, Math.max(a0, b0), Math.max(a1, b1));
+            }
+            if (a != mm.mASrc || b != mm.mBSrc)
+            {
+                mm = (MinimaxLinear) TreeCodec.shallowCopy(mm);
+                mm.mASrc = a;
+                mm.mBSrc = b;
+            }
+            return mm;
+        }
+        if (node instanceof MultiplyLinear)
+        {
+            MultiplyLinear mul = (MultiplyLinear) node;
+            LinearWave a = linear(mul.mASrc, d0, d1, r);
+            double a0 = r[0];
+            double a1 = r[1];
+            LinearWave b = linear(mul.mBSrc, d0, d1, r);
+            product(r, a0, a1, r[0], r[1]);
+            if (a != mul.mASrc || b != mul.mBSrc)
+            {
+                mul = (MultiplyLinear) TreeCodec.shallowCopy(mul);
+                mul.mASrc = a;
+                mul.mBSrc = b;
+            }
+            return mul;
+        }
+        if (node instanceof GammaLinear)
+        {
+            GammaLinear gamma = (GammaLinear) node;
+            LinearWave source = linear(gamma.mSource, d0, d1, r);
+            gamma(r, gamma.mExp);
+            if (source != gamma.mSource)
+            {
+                gamma = (GammaLinear) TreeCodec.shallowCopy(gamma);
+                gamma.mSource = source;
+            }
+            return gamma;
+        }
+        any(r);
+        return node;
+    }
+
+    // cos over [a0, a1]: between its peaks at the multiples of 2 pi and
+    // its troughs halfway between, cos runs one way, so the ends bound it.
+    // The tests for a peak or a trough inside round outwards.
+    private static void cos(double a0, double a1, boolean fast, double[] r)
+    {
+        if (!finite(a0, a1))
+        {
+            any(r);
+            return;
+        }
+        if (!(a1 - a0 < TWO_PI && -MAX_ANGLE < a0 && a1 < MAX_ANGLE))
+        {
+            set(r, -1.0, 1.0);
+            return;
+        }
+        double c0 = fast ? FastMath.cos(a0) : Math.cos(a0);
+        double c1 = fast ? FastMath.cos(a1) : Math.cos(a1);
+        set(r, Math.min(c0, c1), Math.max(c0, c1));
+        widen(r, fast ? FAST_SLACK : SLACK);
+        if (Math.floor(a1 / TWO_PI + SLACK) >= Math.ceil(a0 / TWO_PI - SLACK))
+        {
+            r[1] = 1.0;
+        }
+        if (Math.floor((a1 - Math.PI) / TWO_PI + SLACK) >= Math.ceil((a0 - Math.PI) / TWO_PI - SLACK))
+        {
+            r[0] = -1.0;
+        }
+        // neither Math.cos nor the table FastMath interpolates ever leaves [-1, 1]
+        r[0] = Math.max(r[0], -1.0);
+        r[1] = Math.min(r[1], 1.0);
+    }
+
+    // atan2(y, x) over the rectangle, which runs continuously over it, and
+    // so is bounded by its corners, unless the rectangle holds the origin
+    // or crosses the cut along the negative x axis
+    private static void angle(double x0, double x1, double y0, double y1, boolean fast, double[] r)
+    {
+        if (x0 <= 0 && y0 <= 0 && y1 >= 0)
+        {
+            set(r, -Math.PI, Math.PI);
+        }
+        else
+        {
+            double c00 = fast ? FastMath.atan2(y0, x0) : Math.atan2(y0, x0);
+            double c01 = fast ? FastMath.atan2(y1, x0) : Math.atan2(y1, x0);
+            double c10 = fast ? FastMath.atan2(y0, x1) : Math.atan2(y0, x1);
+            double c11 = fast ? FastMath.atan2(y1, x1) : Math.atan2(y1, x1);
+            set(r, Math.min(Math.min(c00, c01), Math.min(c10, c11)),
+                    Math.max(Math.max(c00, c01), Math.max(c10, c11)));
+        }
+        widen(r, fast ? FAST_SLACK : SLACK);
+    }
+
+    // Spinflake's value for a distance from the centre in [h0, h1]: it
+    // falls with the distance up to mRadius, and rises beyond, from 0
+    private static void spinflake(Spinflake spin, double h0, double h1, double[] r)
+    {
+        double radius = spin.mRadius;
+        if (!(radius > 0 && spin.mSharpness >= 0) || !finite(h0, h1))
+        {
+            any(r);
+            return;
+        }
+        h0 = Math.max(h0, 0.0);
+        h1 = Math.max(h1, 0.0);
+        double v0;
+        double v1;
+        if (h1 <= radius)
+        {
+            v0 = 1.0 - Math.pow(h1 / radius, spin.mSharpness);
+            v1 = 1.0 - Math.pow(h0 / radius, spin.mSharpness);
+        }
+        else
+        {
+            v1 = (spin.mFastMath ? FastMath.atan(h1 - radius) : Math.atan(h1 - radius)) / (Math.PI / 2.0);
+            if (h0 > radius)
+            {
+                v0 = (spin.mFastMath ? FastMath.atan(h0 - radius) : Math.atan(h0 - radius)) / (Math.PI / 2.0);
+            }
+            else
+            {
+                v0 = 0.0;
+                v1 = Math.max(v1, 1.0 - Math.pow(h0 / radius, spin.mSharpness));
+            }
+        }
+        set(r, v0, v1);
+        widen(r, spin.mFastMath ? FAST_SLACK : SLACK);
+        product(r, (r[0] * 2.0) - 1.0, (r[1] * 2.0) - 1.0, spin.mSignflip, spin.mSignflip);
+    }
+
+    // ((r + 1) / 2) ^ exp, scaled back to [-1, 1]; pow is NaN below 0
+    private static void gamma(double[] r, double exp)
+    {
+        double c0 = (r[0] + 1.0) / 2.0;
+        double c1 = (r[1] + 1.0) / 2.0;
+        if (!(c0 >= 0) || !finite(c0, c1))
+        {
+            any(r);
+            return;
+        }
+        double p0 = Math.pow(c0, exp);
+        double p1 = Math.pow(c1, exp);
+        set(r, Math.min(p0, p1), Math.max(p0, p1));
+        widen(r, SLACK);
+        set(r, r[0] * 2.0 + - 1.0, r[1] * 2.0 + - 1.0);
+    }
+
+    // InsertWavePeaks: the part of r * scale after its whole part, which
+    // runs with r inside one step and covers [0, 1], or [-1, 0] below 0,
+    // across a step
+    private static void peaks(double[] r, double scale, boolean processSign)
+    {
+        if (!finite(r[0], r[1]))
+        {
+            return;
+        }
+        double s0 = r[0];
+        double s1 = r[1];
+        if (processSign)
+        {
+            s0 = (s0 + 1.0) / 2.0;
+            s1 = (s1 + 1.0) / 2.0;
+        }
+        double t0 = Math.min(s0 * scale, s1 * scale);
+        double t1 = Math.max(s0 * scale, s1 * scale);
+        if (!finite(t0, t1))
+        {
+            any(r);
+            return;
+        }
+        double f0 = (t1 < 0) ? -1.0 : 0.0;
+        double f1 = (t0 >= 0) ? 1.0 : 0.0;
+        if (t0 >= 0 && Math.floor(t0) == Math.floor(t1))
+        {
+            f0 = t0 - Math.floor(t0);
+            f1 = t1 - Math.floor(t0);
+        }
+        else if (t1 < 0 && Math.ceil(t0) == Math.ceil(t1))
+        {
+            f0 = t0 - Math.ceil(t1);
+            f1 = t1 - Math.ceil(t1);
+        }
+        else if (!(t0 >= 0) && !(t1 < 0))
+        {
+            f0 = -1.0;
+            f1 = 1.0;
+        }
+        if (processSign)
+        {
+            set(r, (f0 * 2.0) - 1.0, (f1 * 2.0) - 1.0);
+        }
+        else
+        {
+            set(r, f0, f1);
+        }
+    }
+
+    // Quadratesselator along one axis: the offset into its cell, which
+    // runs with the coordinate inside one cell and covers the cell across
+    // a boundary
+    private static void cell(double c0, double c1, double size, double[] r)
+    {
+        double u0 = ((c0 + 1.0) / 2.0) * size;
+        double u1 = ((c1 + 1.0) / 2.0) * size;
+        if (!finite(Math.min(u0, u1), Math.max(u0, u1)))
+        {
+            any(r);
+            return;
+        }
+        double f = Math.floor(Math.min(u0, u1));
+        double f0 = 0.0;
+        double f1 = 1.0;
+        if (f == Math.floor(Math.max(u0, u1)))
+        {
+            f0 = Math.min(u0, u1) - f;
+            f1 = Math.max(u0, u1) - f;
+        }
+        double t0 = ((f0 / size) * 2.0) - 1.0;
+        double t1 = ((f1 / size) * 2.0) - 1.0;
+        set(r, Math.min(t0, t1), Math.max(t0, t1));
+    }
+
+    // Hexatesselator's coordinates, into box as x0, x1, y0, y1: x and y are
+    // folded into a cell, as by cell, and then shifted by whichever of the
+    // four offsets can apply
+    private static void hexagon(Hexatesselator hex, double x0, double x1, double y0, double y1, double[] box)
+    {
+        double a0 = (Math.min(x0 * hex.mScale, x1 * hex.mScale) + hex.sinThirdPi) / hex.twiceSinThirdPi;
+        double a1 = (Math.max(x0 * hex.mScale, x1 * hex.mScale) + hex.sinThirdPi) / hex.twiceSinThirdPi;
+        double b0 = (Math.min(y0 * hex.mScale, y1 * hex.mScale) + 2.0) / 3.0;
+        double b1 = (Math.max(y0 * hex.mScale, y1 * hex.mScale) + 2.0) / 3.0;
+        if (!finite(a0, a1) || !finite(b0, b1))
+        {
+            box[0] = box[2] = Double.NEGATIVE_INFINITY;
+            box[1] = box[3] = Double.POSITIVE_INFINITY;
+            return;
+        }
+        double u0 = (0.0 * hex.twiceSinThirdPi) - hex.sinThirdPi;
+        double u1 = (1.0 * hex.twiceSinThirdPi) - hex.sinThirdPi;
+        if (Math.floor(a0) == Math.floor(a1))
+        {
+            u0 = ((a0 - Math.floor(a0)) * hex.twiceSinThirdPi) - hex.sinThirdPi;
+            u1 = ((a1 - Math.floor(a0)) * hex.twiceSinThirdPi) - hex.sinThirdPi;
+        }
+        double v0 = (0.0 * 3.0) - 2.0;
+        double v1 = (1.0 * 3.0) - 2.0;
+        if (Math.floor(b0) == Math.floor(b1))
+        {
+            v0 = ((b0 - Math.floor(b0)) * 3.0) - 2.0;
+            v1 = ((b1 - Math.floor(b0)) * 3.0) - 2.0;
+        }
+        double q0 = absLo(u0, u1) / hex.tanThirdPi;
+        double q1 = absHi(u0, u1) / hex.tanThirdPi;
+        boolean upper = v1 - hex.cosThirdPi > q0;
+        boolean onlyUpper = v0 - hex.cosThirdPi > q1;
+        boolean lower = !onlyUpper && -v0 - hex.cosThirdPi > q0;
+        boolean onlyLower = -v1 - hex.cosThirdPi > q1;
+        box[0] = box[2] = Double.POSITIVE_INFINITY;
+        box[1] = box[3] = Double.NEGATIVE_INFINITY;
+        if (upper || lower)
+        {
+            box[0] = u0 + 0;
+            box[1] = u1 + 0;
+        }
+        if (upper)
+        {
+            box[2] = v0 + (-2 + hex.cosThirdPi);
+            box[3] = v1 + (-2 + hex.cosThirdPi);
+        }
+        if (lower)
+        {
+            box[2] = Math.min(box[2], v0 + (1.0 + hex.cosThirdPi));
+            box[3] = Math.max(box[3], v1 + (1.0 + hex.cosThirdPi));
+        }
+        if (!onlyUpper && !onlyLower)
+        {
+            if (u0 < 0)
+            {
+                box[0] = Math.min(box[0], u0 + hex.sinThirdPi);
+                box[1] = Math.max(box[1], Math.min(u1, 0.0) + hex.sinThirdPi);
+            }
+            if (!(u1 < 0))
+            {
+                box[0] = Math.min(box[0], Math.max(u0, 0.0) - hex.sinThirdPi);
+                box[1] = Math.max(box[1], u1 - hex.sinThirdPi);
+            }
+            box[2] = Math.min(box[2], v0 + 0);
+            box[3] = Math.max(box[3], v1 + 0);
+        }
+    }
+
+    // sqrt(x*x + y*y) over the rectangle, which grows with |x| and |y|
+    private static double hypotLo(double x0, double x1, double y0, double y1)
+    {
+        double x = absLo(x0, x1);
+        double y = absLo(y0, y1);
+        return Math.sqrt(x*x + y*y);
+    }
+
+    private static double hypotHi(double x0, double x1, double y0, double y1)
+    {
+        double x = absHi(x0, x1);
+        double y = absHi(y0, y1);
+        return Math.sqrt(x*x + y*y);
+    }
+
+    // the least and greatest |c| for c in [c0, c1]
+    private static double absLo(double c0, double c1)
+    {
+        return (c0 > 0) ? c0 : (c1 < 0) ? -c1 : 0.0;
+    }
+
+    private static double absHi(double c0, double c1)
+    {
+        return Math.max(Math.abs(c0), Math.abs(c1));
+    }
+
+    // [a0, a1] * [b0, b1], whose ends are among the corners' products
+    private static void product(double[] r, double a0, double a1, double b0, double b1)
+    {
+        double p00 = a0 * b0;
+        double p01 = a0 * b1;
+        double p10 = a1 * b0;
+        double p11 = a1 * b1;
+        set(r, Math.min(Math.min(p00, p01), Math.min(p10, p11)),
+                Math.max(Math.max(p00, p01), Math.max(p10, p11)));
+    }
+
+    private static void widen(double[] r, double slack)
+    {
+        if (finite(r[0], r[1]))
+        {
+            r[0] -= slack * Math.max(1.0, Math.abs(r[0]));
+            r[1] += slack * Math.max(1.0, Math.abs(r[1]));
+        }
+    }
+
+    private static void set(double[] r, double lo, double hi)
+    {
+        if (finite(lo, hi))
+        {
+            r[0] = lo;
+            r[1] = hi;
+        }
+        else
+        {
+            any(r);
+        }
+    }
+
+    private static void any(double[] r)
+    {
+        r[0] = Double.NEGATIVE_INFINITY;
+        r[1] = Double.POSITIVE_INFINITY;
+    }
+
+    // false for NaN too
+    private static boolean finite(double lo, double hi)
+    {
+        return lo > Double.NEGATIVE_INFINITY && hi < Double.POSITIVE_INFINITY;
+    }
+}
+
+// Estimates what a tree costs to render from its shape alone: the sum of
+// each node's own cost per sample, times the samples each pixel takes.
+// Nodes are costed as they run in getBlock, interpreted, and every node
+// is counted once per sample, leaving out the samples a Compositor skips
+// and the subtrees a tile's region cuts away, which vary too much from
+// tree to tree to model. The table holds ns per sample for each node type, children
+// excluded, with the fast-math variants of the trig nodes apart. Nodes
+// cost more inside a real tree than alone, so the sum is scaled by the
+// ratio seen over a few whole trees. calibrate measures both afresh on
+// this machine; the defaults are the average of five calibrations on a
+// 1-core sandbox. Over 200 random trees, whose costs spread over 45x, the
+// true cost of 80% of them was within 0.75-1.2x of the estimate, except
+// with adaptive anti-aliasing: how much of an image is edges varies from
+// tree to tree and with the size, and widens that to 0.4-2.2x.
+final class CostModel
+{
+    // per pixel, for the block loop, coordinates and packing, whatever the tree
+    static final double PIXEL_OVERHEAD = 8.0;
+    // the fraction of pixels adaptive anti-aliasing resamples, on average
+    static final double EDGE_FRACTION = 0.38;
+
+    private static final Map<Class<?>, double[]> sCosts = new LinkedHashMap<Class<?>, double[]>();
+    private static double sScale = 1.14;
+
+    static
+    {
+        // ns per sample: exact, fast math
+        set(Coswave.class, 13.5, 3.6);
+        set(Sawtooth.class, 0.6, 0.6);
+        set(Ess.class, 1.0, 1.0);
+        set(InvertWave.class, 0.2, 0.2);
+        set(InsertWavePeaks.class, 3.2, 3.2);
+        set(Modulator.class, 0.3, 0.3);
+        set(MixLinear.class, 0.9, 0.9);
+        set(MinimaxLinear.class, 0.6, 0.6);
+        set(MultiplyLinear.class, 0.3, 0.3);
+        set(GammaLinear.class, 24.3, 24.3);
+        set(Pebbledrop.class, 2.0, 2.0);
+        set(Curtain.class, 0.6, 0.6);
+        set(Zigzag.class, 1.0, 1.0);
+        set(Starfish2.class, 71.9, 16.3);
+        set(Spinflake.class, 104.6, 46.8);
+        set(InvertPlane.class, 0.2, 0.2);
+        set(MinimaxPlanar.class, 0.1, 0.1);
+        set(MixPlanar.class, 0.0, 0.0);
+        set(WarpPlane.class, 1.2, 1.2);
+        set(Reflector.class, 25.1, 25.1);
+        set(GammaPlanar.class, 23.6, 23.6);
+        set(MultiplyPlanar.class, 0.0, 0.0);
+        set(Quadratesselator.class, 2.1, 2.1);
+        set(Hexatesselator.class, 8.3, 8.3);
+        set(Rotawarp.class, 99.0, 26.6);
+        set(Mixmaster.class, 1.5, 1.5);
+        set(Gradientor.class, 1.8, 1.8);
+        set(Compositor.class, 4.6, 4.6);
+    }
+
+    private CostModel()
+    {
+    }
+
+    private static synchronized void set(Class<?> type, double exact, double fast)
+    {
+        sCosts.put(type, new double[] {exact, fast});
+    }
+
+    private static synchronized double cost(Object node)
+    {
+        double[] c = sCosts.get(node.getClass());
+        if (c == null)
+        {
+            throw new IllegalArgumentException("no cost for a " + node.getClass().getSimpleName());
+        }
+        return fastMath(node) ? c[1] : c[0];
+    }
+
+    private static boolean fastMath(Object node)
+    {
+        if (node instanceof Coswave) return ((Coswave) node).mFastMath;
+        if (node instanceof Starfish2) return ((Starfish2) node).mFastMath;
+        if (node instanceof Spinflake) return ((Spinflake) node).mFastMath;
+        if (node instanceof Rotawarp) return ((Rotawarp) node).mFastMath;
+        return false;
+    }
+
+    // ns for one evaluation of the tree
+    static double nsPerSample(ImageLayer tree)
+    {
+        return sumOfNodes(tree) * scale();
+    }
+
+    private static synchronized double scale()
+    {
+        return sScale;
+    }
+
+    private static double sumOfNodes(ImageLayer tree)
+    {
+        double total = 0.0;
+        for (Object node : TreeNodes.all(tree))
+        {
+            total += cost(node);
+        }
+        return total;
+    }
+
+    // Evaluations of the tree per pixel under the engine's wrap and
+    // anti-alias settings.
+    static double samplesPerPixel(StarfishEngine engine)
+    {
+        double samples = 1.0;
+        if (engine.mAAMode == AAMode.AAMODE_2X) samples = 2.0;
+        else if (engine.mAAMode == AAMode.AAMODE_4X) samples = 4.0;
+        else samples += engine.mEdgeSamples * EDGE_FRACTION;
+        if (engine.mWrapMode == WrapMode.WRAP_BLEND)
+        {
+            samples *= 4.0;
+        }
+        return samples;
+    }
+
+    // Estimated ns of one core per pixel for the engine's tree as generated.
+    static double nsPerPixel(StarfishEngine engine)
+    {
+        return PIXEL_OVERHEAD + nsPerSample(engine.mTree) * samplesPerPixel(engine);
+    }
+
+    // Estimated ms of one core for the whole image.
+    static double millis(StarfishEngine engine)
+    {
+        return nsPerPixel(engine) * engine.mWidth * engine.mHeight / 1e6;
+    }
+
+    // Times every node type on this machine and replaces the table. Each
+    // node is built with the cheapest children of the right kinds, timed on
+    // blocks of samples, and charged its time less the time of its
+    // children alone. A first pass over every type runs while the JIT is
+    // still compiling and is thrown away. Takes a few seconds.
+    static void calibrate()
+    {
+        Class<?>[] types;
+        synchronized (CostModel.class)
+        {
+            types = sCosts.keySet().toArray(new Class<?>[0]);
+        }
+        for (Class<?> type : types)
+        {
+            selfCost(type, new SplittableRandom(0), false);
+            selfCost(type, new SplittableRandom(0), true);
+        }
+        for (Class<?> type : types)
+        {
+            double exact = 0.0;
+            double fast = 0.0;
+            boolean trig = type == Coswave.class || type == Starfish2.class
+                    || type == Spinflake.class || type == Rotawarp.class;
+            for (int k = 0; k < 4; k++)
+            {
+                exact += selfCost(type, new SplittableRandom(k), false) / 4;
+                if (trig)
+                {
+                    fast += selfCost(type, new SplittableRandom(k), true) / 4;
+                }
+            }
+            set(type, exact, trig ? fast : exact);
+        }
+        double[] ratios = new double[21];
+        int[] out = new int[64 * 40];
+        for (int i = 0; i < ratios.length; i++)
+        {
+            StarfishPalette palette = StarfishEngine.initRandomPalette(new StarfishPalette(),
+                    new SplittableRandom(i).split());
+            StarfishEngine engine = new StarfishEngine(64, 40, palette,
+                    WrapMode.WRAP_NONE, 50, AAMode.AAMODE_NONE, i, false);
+            long best = Long.MAX_VALUE;
+            for (int run = 0; run < 4; run++)
+            {
+                long start = System.nanoTime();
+                engine.getBlock(0, 0, 64, 40, out, 0, 64);
+                best = Math.min(best, System.nanoTime() - start);
+            }
+            ratios[i] = (best / (64.0 * 40.0) - PIXEL_OVERHEAD) / sumOfNodes(engine.mTree);
+        }
+        Arrays.sort(ratios);
+        synchronized (CostModel.class)
+        {
+            sScale = ratios[ratios.length / 2];
+        }
+    }
+
+    private static double selfCost(Class<?> type, SplittableRandom r, boolean fastMath)
+    {
+        Object node = build(type, r, fastMath);
+        double t = time(node);
+        for (Object child : TreeNodes.children(node))
+        {
+            t -= time(child);
+        }
+        return Math.max(0.0, t);
+    }
+
+    // the node with a Sawtooth for each linear child, a Curtain of one for
+    // each planar child and a Gradientor of that for each image child
+    private static Object build(Class<?> type, SplittableRandom r, boolean fastMath)
+    {
+        StarfishPalette palette = StarfishEngine.initRandomPalette(new StarfishPalette(), r.split());
+        Constructor<?> c = type.getDeclaredConstructors()[0];
+        Class<?>[] params = c.getParameterTypes();
+        Object[] args = new Object[params.length];
+        for (int i = 0; i < params.length; i++)
+        {
+            if (params[i] == SplittableRandom.class) args[i] = r;
+            else if (params[i] == boolean.class) args[i] = fastMath;
+            else if (params[i] == StarfishPalette.class) args[i] = palette;
+            else if (params[i] == LinearWave.class) args[i] = new Sawtooth(r);
+            else if (params[i] == PlanarWave.class) args[i] = new Curtain(new Sawtooth(r));
+            else if (params[i] == ImageLayer.class)
+            {
+                args[i] = new Gradientor(r, new Curtain(new Sawtooth(r)), palette);
+            }
+        }
+        try
+        {
+            return c.newInstance(args);
+        }
+        catch (ReflectiveOperationException e)
+        {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // ns per sample, the best of several runs over a row of coordinates
+    private static double time(Object node)
+    {
+        int n = TileRenderer.TILE_SIZE;
+        double[] x = new double[n];
+        double[] y = new double[n];
+        double[] d = new double[n];
+        int[] c = new int[n];
+        for (int i = 0; i < n; i++)
+        {
+            x[i] = (i * 2.0) / n - 1.0;
+            y[i] = 0.3 - x[i] * 0.7;
+        }
+        int reps = 200;
+        long best = Long.MAX_VALUE;
+        for (int run = 0; run < 12; run++)
+        {
+            long start = System.nanoTime();
+            for (int k = 0; k < reps; k++)
+            {
+                if (node instanceof LinearWave) ((LinearWave) node).value(x, d, n);
+                else if (node instanceof PlanarWave) ((PlanarWave) node).value(x, y, d, n);
+                else ((ImageLayer) node).value(x, y, c, n);
+            }
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        return best / (double) (reps * n);
+    }
+
+    // Cost of every node type, as source for the table above.
+    static synchronized String table()
+    {
+        StringBuilder sb = new StringBuilder(String.format("    scale %.2f%n", sScale));
+        for (Map.Entry<Class<?>, double[]> e : sCosts.entrySet())
+        {
+            sb.append(String.format("        set(%s.class, %.1f, %.1f);%n",
+                    e.getKey().getSimpleName(), e.getValue()[0], e.getValue()[1]));
+        }
+        return sb.toString();
+    }
+}
+
+// Measures where a render spends its time. attach puts a wrapper above
+// every node of a tree that counts the samples through it and times every
+// block call but only one single-sample call in SAMPLE_EVERY, where the
+// clock would cost more than many nodes do; report then estimates each
+// node's total time as its timed nanoseconds scaled up to all its samples,
+// and its self time as that total less its children's. The wrappers go
+// only into trees an engine has been asked to profile, so other renders
+// run exactly as before. Nodes are keyed by their place in the tree, so
+// the frames of an animation, or the levels of a pyramid, add up into one
+// report.
+//
+// The events at the end mark the generation, render and encode phases for
+// Java Flight Recorder, as starfish.Generate, starfish.Render and
+// starfish.Encode; they cost next to nothing unless a recording is on.
+final class Profiler
+{
+    static final int SAMPLE_EVERY = 16;
+    static final int HOTSPOTS = 5;
+
+    private final Map<String, Node> mNodes = new LinkedHashMap<String, Node>();
+    private Node mRoot;
+
+    static final class Node
+    {
+        final String mName;
+        final String mField;
+        final Node mParent;
+        final List<Node> mChildren = new ArrayList<Node>();
+        final LongAdder mCalls = new LongAdder();
+        final LongAdder mSamples = new LongAdder();
+        final LongAdder mTimedSamples = new LongAdder();
+        final LongAdder mTimedNanos = new LongAdder();
+        // shared by every thread without locking; a lost update only moves
+        // which call gets timed
+        int mCountdown = SAMPLE_EVERY;
+
+        Node(String name, String field, Node parent)
+        {
+            mName = name;
+            mField = field;
+            mParent = parent;
+        }
+
+        boolean timeThis()
+        {
+            if (--mCountdown > 0)
+            {
+                return false;
+            }
+            mCountdown = SAMPLE_EVERY;
+            return true;
+        }
+
+        void timed(int n, long nanos)
+        {
+            mTimedSamples.add(n);
+            mTimedNanos.add(nanos);
+        }
+
+        double totalNanos()
+        {
+            long timed = mTimedSamples.sum();
+            return (timed == 0) ? 0.0 : mTimedNanos.sum() * (double) mSamples.sum() / timed;
+        }
+
+        double selfNanos()
+        {
+            double self = totalNanos();
+            for (Node child : mChildren)
+            {
+                self -= child.totalNanos();
+            }
+            return Math.max(self, 0.0);
+        }
+
+        // "Hexatesselator under Compositor mask"
+        String describe()
+        {
+            return (mParent == null) ? mName : mName + " under " + mParent.mName + " " + mField;
+        }
+    }
+
+    static final class ProfiledLinear implements LinearWave
+    {
+        final LinearWave mTarget;
+        final Node mNode;
+
+        ProfiledLinear(LinearWave target, Node node)
+        {
+            mTarget = target;
+            mNode = node;
+        }
+
+        public double value(double d)
+        {
+            mNode.mCalls.increment();
+            mNode.mSamples.increment();
+            if (!mNode.timeThis())
+            {
+                return mTarget.value(d);
+            }
+            long start = System.nanoTime();
+            double v = mTarget.value(d);
+            mNode.timed(1, System.nanoTime() - start);
+            return v;
+        }
+
+        public void value(double[] d, double[] out, int n)
+        {
+            mNode.mCalls.increment();
+            mNode.mSamples.add(n);
+            long start = System.nanoTime();
+            mTarget.value(d, out, n);
+            mNode.timed(n, System.nanoTime() - start);
+        }
+    }
+
+    static final class ProfiledPlanar implements PlanarWave
+    {
+        final PlanarWave mTarget;
+        final Node mNode;
+
+        ProfiledPlanar(PlanarWave target, Node node)
+        {
+            mTarget = target;
+            mNode = node;
+        }
+
+        public double value(double x, double y)
+        {
+            mNode.mCalls.increment();
+            mNode.mSamples.increment();
+            if (!mNode.timeThis())
+            {
+                return mTarget.value(x, y);
+            }
+            long start = System.nanoTime();
+            double v = mTarget.value(x, y);
+            mNode.timed(1, System.nanoTime() - start);
+            return v;
+        }
+
+        public void value(double[] x, double[] y, double[] out, int n)
+        {
+            mNode.mCalls.increment();
+            mNode.mSamples.add(n);
+            long start = System.nanoTime();
+            mTarget.value(x, y, out, n);
+            mNode.timed(n, System.nanoTime() - start);
+        }
+    }
+
+    static final class ProfiledImage implements ImageLayer
+    {
+        final ImageLayer mTarget;
+        final Node mNode;
+
+        ProfiledImage(ImageLayer target, Node node)
+        {
+            mTarget = target;
+            mNode = node;
+        }
+
+        public int value(double x, double y)
+        {
+            mNode.mCalls.increment();
+            mNode.mSamples.increment();
+            if (!mNode.timeThis())
+            {
+                return mTarget.value(x, y);
+            }
+            long start = System.nanoTime();
+            int v = mTarget.value(x, y);
+            mNode.timed(1, System.nanoTime() - start);
+            return v;
+        }
+
+        public void value(double[] x, double[] y, int[] out, int n)
+        {
+            mNode.mCalls.increment();
+            mNode.mSamples.add(n);
+            long start = System.nanoTime();
+            mTarget.value(x, y, out, n);
+            mNode.timed(n, System.nanoTime() - start);
+        }
+    }
+
+    // Wraps every node of root, which must not be shared with anything
+    // that is saved or compiled, and returns the wrapped root.
+    synchronized ImageLayer attach(ImageLayer root)
+    {
+        return (ImageLayer) wrap(root, ImageLayer.class, null, "");
+    }
+
+    private Object wrap(Object node, Class<?> type, Node parent, String field)
+    {
+        String name = node.getClass().getSimpleName();
+        String path = (parent == null) ? name : path(parent) + "/" + field + ":" + name;
+        Node record = mNodes.get(path);
+        if (record == null)
+        {
+            record = new Node(name, field, parent);
+            mNodes.put(path, record);
+            if (parent == null)
+            {
+                mRoot = record;
+            }
+            else
+            {
+                parent.mChildren.add(record);
+            }
+        }
+        for (Field f : TreeNodes.childFields(node))
+        {
+            try
+            {
+                Object child = f.get(node);
+                if (child != null)
+                {
+                    f.set(node, wrap(child, f.getType(), record, fieldName(f)));
+                }
+            }
+            catch (IllegalAccessException e)
+            {
+                throw new IllegalStateException(e);
+            }
+        }
+        if (type == LinearWave.class) return new ProfiledLinear((LinearWave) node, record);
+        if (type == PlanarWave.class) return new ProfiledPlanar((PlanarWave) node, record);
+        return new ProfiledImage((ImageLayer) node, record);
+    }
+
+    private String path(Node node)
+    {
+        return (node.mParent == null) ? node.mName : path(node.mParent) + "/" + node.mField + ":" + node.mName;
+    }
+
+    // mSrcA reads as srcA
+    private static String fieldName(Field f)
+    {
+        String name = f.getName();
+        if (name.length() > 1 && name.charAt(0) == 'm')
+        {
+            return Character.toLowerCase(name.charAt(1)) + name.substring(2);
+        }
+        return name;
+    }
+
+    // The tree with each node's total and self time as a share of the
+    // whole, then self time summed by node type, then the nodes with the
+    // most self time.
+    synchronized String report()
+    {
+        StringBuilder sb = new StringBuilder();
+        if (mRoot == null || mRoot.totalNanos() == 0.0)
+        {
+            return "nothing was profiled" + System.lineSeparator();
+        }
+        double whole = mRoot.totalNanos();
+        sb.append(String.format("%.1f ms of tree time over %d samples%n",
+                whole / 1e6, mRoot.mSamples.sum()));
+        sb.append(String.format(" total    self     samples  node%n"));
+        appendTree(sb, mRoot, 0, whole);
+
+        Map<String, Double> byType = new HashMap<String, Double>();
+        for (Node node : mNodes.values())
+        {
+            Double sum = byType.get(node.mName);
+            byType.put(node.mName, ((sum == null) ? 0.0 : sum) + node.selfNanos());
+        }
+        List<Map.Entry<String, Double>> types = new ArrayList<Map.Entry<String, Double>>(byType.entrySet());
+        Collections.sort(types, new Comparator<Map.Entry<String, Double>>()
+        {
+            public int compare(Map.Entry<String, Double> a, Map.Entry<String, Double> b)
+            {
+                return Double.compare(b.getValue(), a.getValue());
+            }
+        });
+        sb.append(String.format("self time by type%n"));
+        for (Map.Entry<String, Double> e : types)
+        {
+            sb.append(String.format("%6.1f%%  %s%n", 100.0 * e.getValue() / whole, e.getKey()));
+        }
+
+        List<Node> nodes = new ArrayList<Node>(mNodes.values());
+        Collections.sort(nodes, new Comparator<Node>()
+        {
+            public int compare(Node a, Node b)
+            {
+                return Double.compare(b.selfNanos(), a.selfNanos());
+            }
+        });
+        sb.append(String.format("hotspots%n"));
+        for (int i = 0; i < Math.min(HOTSPOTS, nodes.size()); i++)
+        {
+            Node node = nodes.get(i);
+            sb.append(String.format("  %s: %.0f%%%n", node.describe(), 100.0 * node.selfNanos() / whole));
+        }
+        return sb.toString();
+    }
+
+    private void appendTree(StringBuilder sb, Node node, int depth, double whole)
+    {
+        StringBuilder indent = new StringBuilder();
+        for (int i = 0; i < depth; i++)
+        {
+            indent.append("  ");
+        }
+        String label = (node.mParent == null) ? node.mName : node.mField + ": " + node.mName;
+        sb.append(String.format("%5.1f%%  %5.1f%%  %10d  %s%s%n", 100.0 * node.totalNanos() / whole,
+                100.0 * node.selfNanos() / whole, node.mSamples.sum(), indent, label));
+        for (Node child : node.mChildren)
+        {
+            appendTree(sb, child, depth + 1, whole);
+        }
+    }
+
+    @Name("starfish.Generate")
+    @Label("Generate Tree")
+    @Category("Starfish")
+    static final class GenerateEvent extends Event
+    {
+        @Label("Seed")
+        long seed;
+        @Label("Complexity")
+        int complexity;
+        @Label("Nodes")
+        int nodes;
+    }
+
+    @Name("starfish.Render")
+    @Label("Render")
+    @Category("Starfish")
+    static final class RenderEvent extends Event
+    {
+        @Label("Seed")
+        long seed;
+        @Label("Width")
+        int width;
+        @Label("Height")
+        int height;
+        @Label("Anti-aliasing")
+        String antialias;
+        @Label("Compiled")
+        boolean compiled;
+        @Label("Profiled")
+        boolean profiled;
+
+        RenderEvent(StarfishEngine engine)
+        {
+            seed = engine.mSeed;
+            width = engine.mWidth;
+            height = engine.mHeight;
+            antialias = engine.mAAMode.name();
+            compiled = engine.mSource instanceof CompiledImageLayer;
+            profiled = engine.mProfiler != null;
+        }
+    }
+
+    @Name("starfish.Encode")
+    @Label("Encode PNG")
+    @Category("Starfish")
+    static final class EncodeEvent extends Event
+    {
+        @Label("Width")
+        int width;
+        @Label("Rows")
+        int rows;
+    }
+}
+
+// Drifts the phases of an engine's Coswave and Sawtooth waves, and the
+// offsets of its Mixmasters, through one loop of an animation. Each
+// setting is a function of the loop position alone, and every phase comes
+// back to its start after a whole number of cycles, so any copy of the
+// tree can render any frame and the last frame runs into the first.
+class Animator
+{
+    // keeps the drift rates apart from the numbers the tree was built from
+    static final long SALT = 0x5DEECE66DL;
+    static final double DRIFT_RADIUS = 0.25;
+
+    StarfishEngine mEngine;
+    ImageLayer mRoot;
+    boolean mCompile;
+    List<Drift> mDrifts = new ArrayList<Drift>();
+
+    abstract static class Drift
+    {
+        abstract void apply(double t);
+    }
+
+    Animator(StarfishEngine engine, long seed, boolean compile)
+    {
+        mEngine = engine;
+        mRoot = engine.mTree;
+        mCompile = compile;
+        SplittableRandom r = new SplittableRandom(seed ^ SALT);
+        for (Object node : TreeNodes.all(mRoot))
+        {
+            if (node instanceof Coswave)
+            {
+                final Coswave c = (Coswave) node;
+                final double phase = c.mPhase;
+                final int cycles = cycles(r);
+                mDrifts.add(new Drift()
+                {
+                    void apply(double t)
+                    {
+                        c.mPhase = phase + 2.0 * Math.PI * cycles * t;
+                    }
+                });
+            }
+            else if (node instanceof Sawtooth)
+            {
+                final Sawtooth s = (Sawtooth) node;
+                final double phase = s.mPhase;
+                final int cycles = cycles(r);
+                mDrifts.add(new Drift()
+                {
+                    void apply(double t)
+                    {
+                        s.mPhase = phase + cycles * t / s.mPeriod;
+                    }
+                });
+            }
+            else if (node instanceof Mixmaster)
+            {
+                // the offset circles round its starting point
+                final Mixmaster m = (Mixmaster) node;
+                final double x = m.mXOff;
+                final double y = m.mYOff;
+                final double start = r.nextDouble() * 2.0 * Math.PI;
+                final int cycles = cycles(r);
+                mDrifts.add(new Drift()
+                {
+                    void apply(double t)
+                    {
+                        double a = start + 2.0 * Math.PI * cycles * t;
+                        m.mXOff = x + DRIFT_RADIUS * (Math.cos(a) - Math.cos(start));
+                        m.mYOff = y + DRIFT_RADIUS * (Math.sin(a) - Math.sin(start));
+                    }
+                });
+            }
+        }
+    }
+
+    // one or two cycles per loop, either way round
+    static int cycles(SplittableRandom r)
+    {
+        int n = 1 + r.nextInt(2);
+        return r.nextBoolean() ? n : -n;
+    }
+
+    // t runs from 0 to 1 over the loop
+    void setTime(double t)
+    {
+        for (Drift d : mDrifts)
+        {
+            d.apply(t);
+        }
+        mEngine.initSource();
+        if (mCompile)
+        {
+            mEngine.compile();
+        }
+    }
+}
+
+interface EngineFactory
+{
+    StarfishEngine newEngine(int width, int height);
+}
+
+// The settings an export was started with, kept beside it in NAME.manifest.
+// Exports are named only by seed, so files already on disk are reused only
+// when the manifest matches the run that finds them.
+final class ResumeManifest
+{
+    private ResumeManifest()
+    {
+    }
+
+    // Writes the manifest of a new export into file, or checks the one
+    // already there. dir holds the export's files; if it has some but there
+    // is no manifest, they cannot be checked either.
+    static void check(File file, File dir, String contents) throws IOException
+    {
+        byte[] data = contents.getBytes(StandardCharsets.UTF_8);
+        if (file.exists())
+        {
+            if (!Arrays.equals(Files.readAllBytes(file.toPath()), data))
+            {
+                throw new IOException(dir + " was started with other settings;"
+                        + " remove it or choose another --out");
+            }
+            return;
+        }
+        String[] existing = dir.list();
+        if (existing != null && existing.length > 0)
+        {
+            throw new IOException(dir + " has no " + file.getName()
+                    + " to check its settings against; remove it or choose another --out");
+        }
+        File tmp = new File(file.getPath() + ".tmp");
+        Files.write(tmp.toPath(), data);
+        if (!tmp.renameTo(file))
+        {
+            throw new IOException("cannot rename " + tmp + " to " + file);
+        }
+    }
+}
+
+// Writes a Deep Zoom pyramid, name.dzi plus name_files/<level>/<col>_<row>.png.
+// Every level is rendered natively by its own engine at its own size; the
+// tree depends only on the seed and settings, so all levels show the same
+// picture. Rows of tiles are rendered in parallel. Tiles already on disk
+// are skipped, and each is written under a temporary name and then renamed,
+// so an interrupted export carries on where it stopped when run again.
+// name.manifest holds the key of the tree, from RenderCache.key, and the
+// layout, so tiles are only reused by a run that would draw the same ones.
+class DeepZoomWriter
+{
+    static final int TILE_SIZE = 256;
+    static final int OVERLAP = 1;
+
+    EngineFactory mFactory;
+    int mWidth;
+    int mHeight;
+    String mKey;
+
+    DeepZoomWriter(EngineFactory factory, int width, int height, String key)
+    {
+        mFactory = factory;
+        mWidth = width;
+        mHeight = height;
+        mKey = key;
+    }
+
+    // Returns the number of tiles rendered by this call.
+    int write(File dzi, ExecutorService pool) throws Exception
+    {
+        String name = dzi.getName().replaceFirst("\\.dzi$", "");
+        File files = new File(dzi.getParentFile(), name + "_files");
+        ResumeManifest.check(new File(dzi.getParentFile(), name + ".manifest"), files,
+                "key " + mKey + "\nwidth " + mWidth + "\nheight " + mHeight
+                + "\ntile-size " + TILE_SIZE + "\noverlap " + OVERLAP + "\n");
+        int top = 32 - Integer.numberOfLeadingZeros(Math.max(mWidth, mHeight) - 1);
+        int rendered = 0;
+        for (int level = 0; level <= top; level++)
+        {
+            int shift = top - level;
+            final int width = (int) (((long) mWidth + (1L << shift) - 1) >> shift);
+            final int height = (int) (((long) mHeight + (1L << shift) - 1) >> shift);
+            final StarfishEngine engine = mFactory.newEngine(width, height);
+            final File dir = new File(files, Integer.toString(level));
+            if (!dir.isDirectory() && !dir.mkdirs())
+            {
+                throw new IOException("cannot create " + dir);
+            }
+            final int cols = (width + TILE_SIZE - 1) / TILE_SIZE;
+            int rows = (height + TILE_SIZE - 1) / TILE_SIZE;
+            List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+            for (int row = 0; row < rows; row++)
+            {
+                final int r = row;
+                results.add(pool.submit(new Callable<Integer>()
+                {
+                    public Integer call() throws IOException
+                    {
+                        int n = 0;
+                        for (int col = 0; col < cols; col++)
+                        {
+                            if (writeTile(engine, dir, col, r, width, height))
+                            {
+                                n++;
+                            }
+                        }
+                        return n;
+                    }
+                }));
+            }
+            for (int row = 0; row < rows; row++)
+            {
+                rendered += results.get(row).get();
+            }
+        }
+        String xml = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+                + "<Image xmlns=\"http://schemas.microsoft.com/deepzoom/2008\" Format=\"png\""
+                + " Overlap=\"" + OVERLAP + "\" TileSize=\"" + TILE_SIZE + "\">\n"
+                + "  <Size Width=\"" + mWidth + "\" Height=\"" + mHeight + "\"/>\n"
+                + "</Image>\n";
+        File tmp = new File(dzi.getPath() + ".tmp");
+        OutputStream os = new FileOutputStream(tmp);
+        try
+        {
+            os.write(xml.getBytes("UTF-8"));
+        }
+        finally
+        {
+            os.close();
+        }
+        if (!tmp.renameTo(dzi))
+        {
+            throw new IOException("cannot rename " + tmp + " to " + dzi);
+        }
+        return rendered;
+    }
+
+    // Returns false if the tile was already there.
+    boolean writeTile(StarfishEngine engine, File dir, int col, int row, int width, int height)
+            throws IOException
+    {
+        File f = new File(dir, col + "_" + row + ".png");
+        if (f.exists())
+        {
+            return false;
+        }
+        int x0 = Math.max(0, col * TILE_SIZE - OVERLAP);
+        int y0 = Math.max(0, row * TILE_SIZE - OVERLAP);
+        int x1 = Math.min(width, (col + 1) * TILE_SIZE + OVERLAP);
+        int y1 = Math.min(height, (row + 1) * TILE_SIZE + OVERLAP);
+        int[] rgb = new int[(x1 - x0) * (y1 - y0)];
+        engine.region(x0, y0, x1 - x0, y1 - y0).getBlock(x0, y0, x1 - x0, y1 - y0, rgb, 0, x1 - x0);
+        PngEncoder.writeFile(f, rgb, x1 - x0, y1 - y0);
+        return true;
+    }
+}
+
+// Finished PNGs, keyed by a hash of everything that decides their pixels:
+// the saved tree (which holds the colours, seed, wrap and anti-aliasing
+// settings) and the size. Recent images are held in memory, and every
+// image is kept on disk as KEY.png, each tier trimmed back to its byte
+// limit by dropping the least recently used images. The disk order is kept
+// in the files' modification times, so it survives restarts, and several
+// processes can share a directory: an image one of them evicts is simply a
+// miss for the others.
+class RenderCache
+{
+    // change whenever the same tree and size would render differently
+    static final String VERSION = "starfish-render-2";
+
+    File mDir;
+    long mMemoryLimit;
+    long mDiskLimit;
+    long mMemoryBytes;
+    long mDiskBytes;
+    // both in least recently used order
+    LinkedHashMap<String, byte[]> mMemory = new LinkedHashMap<String, byte[]>(16, 0.75f, true);
+    LinkedHashMap<String, Long> mDisk = new LinkedHashMap<String, Long>(16, 0.75f, true);
+
+    RenderCache(File dir, long memoryLimit, long diskLimit) throws IOException
+    {
+        mDir = dir;
+        mMemoryLimit = memoryLimit;
+        mDiskLimit = diskLimit;
+        if (!dir.isDirectory() && !dir.mkdirs())
+        {
+            throw new IOException("cannot create " + dir);
+        }
+        File[] files = dir.listFiles();
+        if (files == null)
+        {
+            throw new IOException("cannot list " + dir);
+        }
+        Arrays.sort(files, new Comparator<File>()
+        {
+            public int compare(File a, File b)
+            {
+                return Long.compare(a.lastModified(), b.lastModified());
+            }
+        });
+        for (File f : files)
+        {
+            String name = f.getName();
+            if (name.matches("[0-9a-f]{64}\\.png"))
+            {
+                mDisk.put(name.substring(0, 64), f.length());
+                mDiskBytes += f.length();
+            }
+        }
+        synchronized (this)
+        {
+            trimDisk();
+        }
+    }
+
+    static String key(StarfishEngine engine)
+    {
+        try
+        {
+            MessageDigest sha = MessageDigest.getInstance("SHA-256");
+            sha.update(VERSION.getBytes(StandardCharsets.US_ASCII));
+            sha.update(TreeCodec.encode(engine));
+            sha.update(ByteBuffer.allocate(8).putInt(engine.mWidth).putInt(engine.mHeight).array());
+            // none and exact give the same pixels; relaxed was "relaxed" while
+            // it still dropped mixes, so its images from then are not reused
+            if (engine.mSimplifyMode == SimplifyMode.SIMPLIFY_RELAXED
+                    || engine.mSimplifyMode == SimplifyMode.SIMPLIFY_LOSSY)
+            {
+                sha.update(engine.mSimplifyMode.name().getBytes(StandardCharsets.US_ASCII));
+            }
+            StringBuilder sb = new StringBuilder();
+            for (byte b : sha.digest())
+            {
+                sb.append(String.format("%02x", b));
+            }
+            return sb.toString();
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    File file(String key)
+    {
+        return new File(mDir, key + ".png");
+    }
+
+    // The image, or null. A disk hit is one file read, and moves the image
+    // into memory if it fits there.
+    byte[] get(String key)
+    {
+        synchronized (this)
+        {
+            byte[] png = mMemory.get(key);
+            if (png != null || !touch(key))
+            {
+                return png;
+            }
+        }
+        byte[] png;
+        try
+        {
+            png = Files.readAllBytes(file(key).toPath());
+        }
+        catch (IOException e)
+        {
+            forget(key);
+            return null;
+        }
+        synchronized (this)
+        {
+            remember(key, png);
+        }
+        return png;
+    }
+
+    // Copies the image to dest, under a temporary name until complete.
+    // Large images go straight from disk without passing through memory.
+    boolean copyTo(String key, File dest) throws IOException
+    {
+        byte[] png;
+        synchronized (this)
+        {
+            png = mMemory.get(key);
+            if (png == null && !touch(key))
+            {
+                return false;
+            }
+        }
+        File tmp = new File(dest.getPath() + ".tmp");
+        try
+        {
+            if (png != null)
+            {
+                Files.write(tmp.toPath(), png);
+            }
+            else
+            {
+                Files.copy(file(key).toPath(), tmp.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        catch (NoSuchFileException e)
+        {
+            forget(key);
+            return false;
+        }
+        if (!tmp.renameTo(dest))
+        {
+            throw new IOException("cannot rename " + tmp + " to " + dest);
+        }
+        return true;
+    }
+
+    void put(String key, byte[] png) throws IOException
+    {
+        File tmp = File.createTempFile(key, ".tmp", mDir);
+        Files.write(tmp.toPath(), png);
+        store(key, tmp);
+        synchronized (this)
+        {
+            remember(key, png);
+        }
+    }
+
+    // Adds a finished PNG by copying it; only the disk tier takes it.
+    void putFile(String key, File png) throws IOException
+    {
+        File tmp = File.createTempFile(key, ".tmp", mDir);
+        Files.copy(png.toPath(), tmp.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        store(key, tmp);
+    }
+
+    private void store(String key, File tmp) throws IOException
+    {
+        long length = tmp.length();
+        Files.move(tmp.toPath(), file(key).toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        synchronized (this)
+        {
+            Long old = mDisk.put(key, length);
+            mDiskBytes += length - (old == null ? 0 : old);
+            trimDisk();
+        }
+    }
+
+    // Marks a disk entry as just used; false if there is none.
+    private boolean touch(String key)
+    {
+        if (mDisk.get(key) == null)
+        {
+            return false;
+        }
+        file(key).setLastModified(System.currentTimeMillis());
+        return true;
+    }
+
+    private synchronized void forget(String key)
+    {
+        Long length = mDisk.remove(key);
+        if (length != null)
+        {
+            mDiskBytes -= length;
+        }
+    }
+
+    private void remember(String key, byte[] png)
+    {
+        if (png.length > mMemoryLimit)
+        {
+            return;
+        }
+        byte[] old = mMemory.put(key, png);
+        mMemoryBytes += png.length - (old == null ? 0 : old.length);
+        Iterator<Map.Entry<String, byte[]>> it = mMemory.entrySet().iterator();
+        while (mMemoryBytes > mMemoryLimit)
+        {
+            mMemoryBytes -= it.next().getValue().length;
+            it.remove();
+        }
+    }
+
+    private void trimDisk()
+    {
+        Iterator<Map.Entry<String, Long>> it = mDisk.entrySet().iterator();
+        while (mDiskBytes > mDiskLimit && it.hasNext())
+        {
+            Map.Entry<String, Long> eldest = it.next();
+            mDiskBytes -= eldest.getValue();
+            it.remove();
+            file(eldest.getKey()).delete();
+        }
+    }
+}
+
+class StarfishBatch
+{
+    int mWidth = 1280;
+    int mHeight = 800;
+    String mPalette = "Random";
+    WrapMode mWrapMode = WrapMode.WRAP_NONE;
+    int mComplexity = 50;
+    AAMode mAAMode = AAMode.AAMODE_NONE;
+    int mCount = 1;
+    int mJobs = Runtime.getRuntime().availableProcessors();
+    long mSeed = StarfishEngine.newSeed();
+    boolean mCompile = false;
+    boolean mFastMath = false;
+    SimplifyMode mSimplifyMode = SimplifyMode.SIMPLIFY_EXACT;
+    boolean mStream = false;
+    boolean mProfile = false;
+    boolean mDeepZoom = false;
+    int mFrames = 0;
+    File mOutDir = new File(".");
+    File mLoadTree = null;
+    String mSaveTree = null;
+    // the loaded tree, in TreeCodec's binary form
+    byte[] mTree;
+    double mBudgetMillis = 0;
+    double mBudgetNanos = 0;
+    boolean mCalibrate = false;
+    File mCacheDir = null;
+    long mCacheSize = 1024L << 20;
+
+    static void usage()
+    {
+        System.err.println("usage: Starfish [options]");
+        System.err.println("  --width N          image width in pixels (1280)");
+        System.err.println("  --height N         image height in pixels (800)");
+        System.err.println("  --palette NAME     palette name from palettes.txt (Random)");
+        System.err.println("  --wrap MODE        make the image tileable: none, blend (4 samples");
+        System.err.println("                     per pixel) or mirror (1 sample, mirrored) (none)");
+        System.err.println("  --complexity N     tree complexity, 10-100 (50)");
+        System.err.println("  --aa MODE          anti-alias mode: none, x2, x4, or ax4, ax8, ax16 to");
+        System.err.println("                     supersample only at edges (none)");
+        System.err.println("  --count N          number of images to render (1)");
+        System.err.println("  --jobs N           images rendered at once (cores)");
+        System.err.println("  --out DIR          output directory (.)");
+        System.err.println("  --seed N           seed of the first image; image n uses seed+n (random)");
+        System.err.println("  --compile          compile each tree to a specialized class first");
+        System.err.println("  --stream           encode while rendering, a band of rows at a time,");
+        System.err.println("                     so memory does not grow with the image size");
+        System.err.println("  --profile          time every node of each tree, uncompiled, and print");
+        System.err.println("                     where the time went; caching is skipped");
+        System.err.println("  --dzi              write a Deep Zoom tile pyramid, starfish-SEED.dzi;");
+        System.err.println("                     running again resumes an unfinished one");
+        System.err.println("  --frames N         render a looping animation of N frames into");
+        System.err.println("                     starfish-SEED-frames/; running again resumes it");
+        System.err.println("  --quality MODE     exact, or fast approximate trig (exact)");
+        System.err.println("  --simplify MODE    rewrite the tree with fewer nodes before rendering:");
+        System.err.println("                     none, exact (same pixels), relaxed (a few ULPs");
+        System.err.println("                     off) or lossy (up to 1/16 colour level off) (exact)");
+        System.err.println("  --save-tree FORMAT also save each tree beside its image, as sft");
+        System.err.println("                     (binary) or json; PNGs always carry their tree");
+        System.err.println("  --load-tree FILE   render the tree saved in FILE (sft, json or a PNG");
+        System.err.println("                     written by Starfish) instead of a new one; its");
+        System.err.println("                     seed, wrap, anti-aliasing and quality are used");
+        System.err.println("  --budget-ms N      turn down trees estimated to take more than N ms");
+        System.err.println("                     of one core at this size, and try the next seed");
+        System.err.println("  --budget-ns N      the same, for N ns of one core per pixel");
+        System.err.println("  --calibrate        time the node types on this machine before");
+        System.err.println("                     estimating costs");
+        System.err.println("  --cache DIR        reuse images already rendered into DIR, and add");
+        System.err.println("                     new ones to it");
+        System.err.println("  --cache-size MB    disk space the cache may use (1024)");
+        System.err.println("  --list-palettes    print the palette names and exit");
+    }
+
+    static AAMode parseAAMode(String s)
+    {
+        if (s.equalsIgnoreCase("none")) return AAMode.AAMODE_NONE;
+        if (s.equalsIgnoreCase("x2")) return AAMode.AAMODE_2X;
+        if (s.equalsIgnoreCase("x4")) return AAMode.AAMODE_4X;
+        if (s.equalsIgnoreCase("ax4")) return AAMode.AAMODE_ADAPTIVE_4X;
+        if (s.equalsIgnoreCase("ax8")) return AAMode.AAMODE_ADAPTIVE_8X;
+        if (s.equalsIgnoreCase("ax16")) return AAMode.AAMODE_ADAPTIVE_16X;
+        throw new IllegalArgumentException("unknown anti-alias mode: " + s);
+    }
+
+    // true and false are kept for the seeds printed before mirror existed
+    static WrapMode parseWrapMode(String s)
+    {
+        if (s.equalsIgnoreCase("none") || s.equalsIgnoreCase("false")) return WrapMode.WRAP_NONE;
+        if (s.equalsIgnoreCase("blend") || s.equalsIgnoreCase("true")) return WrapMode.WRAP_BLEND;
+        if (s.equalsIgnoreCase("mirror")) return WrapMode.WRAP_MIRROR;
+        throw new IllegalArgumentException("unknown wrap mode: " + s);
+    }
+
+    static boolean parseQuality(String s)
+    {
+        if (s.equalsIgnoreCase("exact")) return false;
+        if (s.equalsIgnoreCase("fast")) return true;
+        throw new IllegalArgumentException("unknown quality: " + s);
+    }
+
+    static SimplifyMode parseSimplifyMode(String s)
+    {
+        if (s.equalsIgnoreCase("none")) return SimplifyMode.SIMPLIFY_NONE;
+        if (s.equalsIgnoreCase("exact")) return SimplifyMode.SIMPLIFY_EXACT;
+        if (s.equalsIgnoreCase("relaxed")) return SimplifyMode.SIMPLIFY_RELAXED;
+        if (s.equalsIgnoreCase("lossy")) return SimplifyMode.SIMPLIFY_LOSSY;
+        throw new IllegalArgumentException("unknown simplify mode: " + s);
+    }
+
+    static String parseTreeFormat(String s)
+    {
+        if (s.equalsIgnoreCase("sft") || s.equalsIgnoreCase("json")) return s.toLowerCase();
+        throw new IllegalArgumentException("unknown tree format: " + s);
+    }
+
+    static int parsePositive(String name, String s)
+    {
+        int n = Integer.parseInt(s);
+        if (n <= 0)
+        {
+            throw new IllegalArgumentException(name + " must be positive: " + s);
+        }
+        return n;
+    }
+
+    // Parses the command line; returns false if the program should exit
+    // without rendering anything.
+    boolean parse(String[] args, StarfishPalette[] palettes)
+    {
+        for (int i = 0; i < args.length; i++)
+        {
+            String arg = args[i];
+            if (arg.equals("--list-palettes"))
+            {
+                for (int p = 0; p < palettes.length; p++)
+                {
+                    System.out.println(palettes[p].name);
+                }
+                return false;
+            }
+            if (arg.equals("--help") || arg.equals("-h"))
+            {
+                usage();
+                return false;
+            }
+            if (arg.equals("--compile"))
+            {
+                mCompile = true;
+                continue;
+            }
+            if (arg.equals("--stream"))
+            {
+                mStream = true;
+                continue;
+            }
+            if (arg.equals("--profile"))
+            {
+                mProfile = true;
+                continue;
+            }
+            if (arg.equals("--dzi"))
+            {
+                mDeepZoom = true;
+                continue;
+            }
+            if (arg.equals("--calibrate"))
+            {
+                mCalibrate = true;
+                continue;
+            }
+            if (i + 1 >= args.length)
+            {
+                throw new IllegalArgumentException("missing value for " + arg);
+            }
+            String value = args[++i];
+            if (arg.equals("--width")) mWidth = parsePositive(arg, value);
+            else if (arg.equals("--height")) mHeight = parsePositive(arg, value);
+            else if (arg.equals("--palette")) mPalette = value;
+            else if (arg.equals("--wrap")) mWrapMode = parseWrapMode(value);
+            else if (arg.equals("--complexity")) mComplexity = parsePositive(arg, value);
+            else if (arg.equals("--aa")) mAAMode = parseAAMode(value);
+            else if (arg.equals("--count")) mCount = parsePositive(arg, value);
+            else if (arg.equals("--jobs")) mJobs = parsePositive(arg, value);
+            else if (arg.equals("--out")) mOutDir = new File(value);
+            else if (arg.equals("--seed")) mSeed = Long.parseLong(value);
+            else if (arg.equals("--quality")) mFastMath = parseQuality(value);
+            else if (arg.equals("--simplify")) mSimplifyMode = parseSimplifyMode(value);
+            else if (arg.equals("--frames")) mFrames = parsePositive(arg, value);
+            else if (arg.equals("--save-tree")) mSaveTree = parseTreeFormat(value);
+            else if (arg.equals("--load-tree")) mLoadTree = new File(value);
+            else if (arg.equals("--budget-ms")) mBudgetMillis = parsePositive(arg, value);
+            else if (arg.equals("--budget-ns")) mBudgetNanos = parsePositive(arg, value);
+            else if (arg.equals("--cache")) mCacheDir = new File(value);
+            else if (arg.equals("--cache-size")) mCacheSize = (long) parsePositive(arg, value) << 20;
+            else throw new IllegalArgumentException("unknown option: " + arg);
+        }
+        if (mLoadTree != null && mCount != 1)
+        {
+            throw new IllegalArgumentException("--load-tree renders one tree; --count must be 1");
+        }
+        if (mDeepZoom && mFrames > 0)
+        {
+            throw new IllegalArgumentException("--dzi and --frames cannot be used together");
+        }
+        return true;
+    }
+
+    static StarfishPalette findPalette(StarfishPalette[] palettes, String name)
+    {
+        for (int i = 0; i < palettes.length; i++)
+        {
+            if (palettes[i].name.equalsIgnoreCase(name))
+            {
+                return palettes[i];
+            }
+        }
+        throw new IllegalArgumentException("unknown palette: " + name);
+    }
+
+    // The loaded tree if there is one, otherwise a new one from the seed.
+    StarfishEngine newEngine(int width, int height, StarfishPalette palette, long seed)
+    {
+        if (mTree != null)
+        {
+            return decode(mTree, width, height);
+        }
+        StarfishEngine sfe = new StarfishEngine(width, height, palette,
+                mWrapMode, mComplexity, mAAMode, seed, mFastMath);
+        sfe.simplify(mSimplifyMode);
+        return sfe;
+    }
+
+    // Another copy of a tree this run has already built or loaded, at any
+    // size, without drawing the random numbers again.
+    StarfishEngine decode(byte[] tree, int width, int height)
+    {
+        StarfishEngine sfe;
+        try
+        {
+            sfe = TreeCodec.decode(tree, width, height);
+        }
+        catch (IOException e)
+        {
+            // it was encoded or decoded once already
+            throw new IllegalStateException(e);
+        }
+        sfe.simplify(mSimplifyMode);
+        return sfe;
+    }
+
+    static StarfishPalette paletteFor(long seed, StarfishPalette base, boolean randomPalette)
+    {
+        return randomPalette ? StarfishEngine.initRandomPalette(new StarfishPalette(),
+                new SplittableRandom(seed).split()) : base;
+    }
+
+    boolean withinBudget(StarfishEngine sfe)
+    {
+        return (mBudgetMillis <= 0 || CostModel.millis(sfe) <= mBudgetMillis)
+                && (mBudgetNanos <= 0 || CostModel.nsPerPixel(sfe) <= mBudgetNanos);
+    }
+
+    // The tree at the output size of the first seed from seed on, along the
+    // chain of nextSeed, that is within the budget; its mSeed says which.
+    // The chain depends only on where it starts, so the same command picks
+    // the same trees.
+    StarfishEngine fitBudget(long seed, StarfishPalette base, boolean randomPalette)
+    {
+        for (int tries = 0; tries < StarfishServer.BUDGET_TRIES; tries++)
+        {
+            StarfishEngine sfe = newEngine(mWidth, mHeight, paletteFor(seed, base, randomPalette), seed);
+            if (withinBudget(sfe))
+            {
+                return sfe;
+            }
+            if (mTree != null)
+            {
+                throw new IllegalStateException("the loaded tree is over the budget");
+            }
+            seed = StarfishEngine.nextSeed(seed);
+        }
+        throw new IllegalStateException("no tree within the budget in "
+                + StarfishServer.BUDGET_TRIES + " tries");
+    }
+
+    // Profiles the engine if profiler is given, or else compiles it if
+    // --compile asked.
+    void prepare(StarfishEngine sfe, Profiler profiler)
+    {
+        if (profiler != null)
+        {
+            sfe.profile(profiler);
+        }
+        else if (mCompile)
+        {
+            sfe.compile();
+        }
+    }
+
+    // in one piece, so that reports from parallel jobs do not interleave
+    static void printProfile(File f, Profiler profiler)
+    {
+        if (profiler != null)
+        {
+            System.err.print("profile of " + f.getPath() + ": " + profiler.report());
+        }
+    }
+
+    // Writes the tree to dir/base.sft or base.json if --save-tree asked.
+    void saveTree(StarfishEngine sfe, File dir, String base) throws IOException
+    {
+        if (mSaveTree == null)
+        {
+            return;
+        }
+        byte[] data = mSaveTree.equals("json") ?
+                TreeCodec.toJson(sfe).getBytes(StandardCharsets.UTF_8) : TreeCodec.encode(sfe);
+        Files.write(new File(dir, base + "." + mSaveTree).toPath(), data);
+    }
+
+    // Renders a band of tiles on the pool while this thread encodes the
+    // band before it. Only two bands are ever held, whatever the height.
+    // Like PngEncoder.writeFile, it writes under a temporary name, renamed
+    // once the image is complete and removed if it never is.
+    static void writeStreaming(TileRenderer renderer, File file, byte[] tree) throws IOException
+    {
+        int width = renderer.mEngine.mWidth;
+        int height = renderer.mEngine.mHeight;
+        int bands = renderer.mTilesDown;
+        int[][] buffers = new int[2][width * TileRenderer.TILE_SIZE];
+        File tmp = new File(file.getPath() + ".tmp");
+        OutputStream os = new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16);
+        boolean done = false;
+        // the render overlaps the encoding, so its event spans both
+        Profiler.RenderEvent event = new Profiler.RenderEvent(renderer.mEngine);
+        event.begin();
+        ForkJoinTask<Void> next = renderer.startBand(0, buffers[0]);
+        try
+        {
+            PngEncoder png = new PngEncoder(os, width, height);
+            png.addChunk(TreeCodec.PNG_CHUNK, tree);
+            for (int band = 0; band < bands; band++)
+            {
+                next.join();
+                next = null;
+                if (band + 1 < bands)
+                {
+                    next = renderer.startBand(band + 1, buffers[(band + 1) & 1]);
+                }
+                int rows = Math.min(TileRenderer.TILE_SIZE, height - band * TileRenderer.TILE_SIZE);
+                png.writeRows(buffers[band & 1], 0, rows);
+            }
+            png.finish();
+            event.commit();
+            os.close();
+            if (!tmp.renameTo(file))
+            {
+                throw new IOException("cannot rename " + tmp + " to " + file);
+            }
+            done = true;
+        }
+        finally
+        {
+            if (next != null)
+            {
+                renderer.cancel();
+                next.quietlyJoin();
+            }
+            try
+            {
+                os.close();
+            }
+            finally
+            {
+                if (!done)
+                {
+                    tmp.delete();
+                }
+            }
+        }
+    }
+
+    // Pyramids are named by seed rather than time, so that the same command
+    // finds and finishes an interrupted export. They are written one after
+    // another, each spreading its tiles over mJobs threads.
+    void writePyramids(final StarfishPalette base, boolean randomPalette) throws Exception
+    {
+        ExecutorService jobs = Executors.newFixedThreadPool(mJobs);
+        try
+        {
+            for (int n = 0; n < mCount; n++)
+            {
+                StarfishEngine accepted = fitBudget(mSeed + n, base, randomPalette);
+                long seed = accepted.mSeed;
+                final byte[] tree = TreeCodec.encode(accepted);
+                final Profiler profiler = mProfile ? new Profiler() : null;
+                DeepZoomWriter writer = new DeepZoomWriter(new EngineFactory()
+                {
+                    public StarfishEngine newEngine(int width, int height)
+                    {
+                        StarfishEngine sfe = decode(tree, width, height);
+                        prepare(sfe, profiler);
+                        return sfe;
+                    }
+                }, mWidth, mHeight, RenderCache.key(accepted));
+                File dzi = new File(mOutDir, "starfish-" + seed + ".dzi");
+                writer.write(dzi, jobs);
+                saveTree(accepted, mOutDir, "starfish-" + seed);
+                System.out.println(dzi.getPath() + " seed " + seed);
+                printProfile(dzi, profiler);
+            }
+        }
+        finally
+        {
+            jobs.shutdownNow();
+        }
+    }
+
+    // Each worker renders whole frames with its own copy of the tree, and
+    // writes each frame as soon as it is done. So at most mJobs frames are
+    // in memory at once, however long the animation. Frames already on disk
+    // are skipped if starfish-SEED-frames.manifest shows they are of the
+    // same tree, size and frame count; the tree's key covers the palette,
+    // wrap, anti-aliasing, complexity and quality.
+    void writeAnimations(final StarfishPalette base, boolean randomPalette) throws Exception
+    {
+        ExecutorService jobs = Executors.newFixedThreadPool(mJobs);
+        try
+        {
+            for (int n = 0; n < mCount; n++)
+            {
+                StarfishEngine accepted = fitBudget(mSeed + n, base, randomPalette);
+                final long seed = accepted.mSeed;
+                final byte[] tree = TreeCodec.encode(accepted);
+                final File dir = new File(mOutDir, "starfish-" + seed + "-frames");
+                ResumeManifest.check(new File(mOutDir, dir.getName() + ".manifest"), dir,
+                        "key " + RenderCache.key(accepted) + "\nwidth " + mWidth
+                        + "\nheight " + mHeight + "\nframes " + mFrames + "\n");
+                if (!dir.isDirectory() && !dir.mkdirs())
+                {
+                    throw new IOException("cannot create " + dir);
+                }
+                final Profiler profiler = mProfile ? new Profiler() : null;
+                final ThreadLocal<Animator> animators = new ThreadLocal<Animator>()
+                {
+                    protected Animator initialValue()
+                    {
+                        // the animator moves the tree, so each has its own
+                        StarfishEngine sfe = decode(tree, mWidth, mHeight);
+                        if (profiler != null)
+                        {
+                            sfe.profile(profiler);
+                        }
+                        return new Animator(sfe, seed, mCompile && profiler == null);
+                    }
+                };
+                List<Future<File>> results = new ArrayList<Future<File>>();
+                for (int frame = 0; frame < mFrames; frame++)
+                {
+                    final int index = frame;
+                    results.add(jobs.submit(new Callable<File>()
+                    {
+                        public File call() throws IOException
+                        {
+                            File f = new File(dir, String.format("frame-%04d.png", index));
+                            if (!f.exists())
+                            {
+                                Animator animator = animators.get();
+                                animator.setTime((double) index / mFrames);
+                                int[] rgb = new int[mWidth * mHeight];
+                                Profiler.RenderEvent event = new Profiler.RenderEvent(animator.mEngine);
+                                event.begin();
+                                animator.mEngine.getBlock(0, 0, mWidth, mHeight, rgb, 0, mWidth);
+                                event.commit();
+                                PngEncoder.writeFile(f, rgb, mWidth, mHeight);
+                            }
+                            return f;
+                        }
+                    }));
+                }
+                for (Future<File> result : results)
+                {
+                    result.get();
+                }
+                saveTree(accepted, mOutDir, "starfish-" + seed);
+                System.out.println(dir.getPath() + " seed " + seed);
+                printProfile(dir, profiler);
+            }
+        }
+        finally
+        {
+            jobs.shutdownNow();
+        }
+    }
+
+    // Renders mCount images, at most mJobs at a time. Each image is split
+    // into tiles on the common fork-join pool, so a single large image still
+    // uses every core while a long batch keeps them all busy between images.
+    void renderAll(StarfishPalette[] palettes) throws Exception
+    {
+        final StarfishPalette base = findPalette(palettes, mPalette);
+        final boolean randomPalette = base.name.equals("Random");
+        if (!mOutDir.isDirectory() && !mOutDir.mkdirs())
+        {
+            throw new IOException("cannot create " + mOutDir);
+        }
+        if (mCalibrate)
+        {
+            CostModel.calibrate();
+        }
+        if (mLoadTree != null)
+        {
+            StarfishEngine loaded = TreeCodec.load(mLoadTree, mWidth, mHeight);
+            mTree = TreeCodec.encode(loaded);
+            mSeed = loaded.mSeed;
+        }
+        if (mDeepZoom)
+        {
+            writePyramids(base, randomPalette);
+            return;
+        }
+        if (mFrames > 0)
+        {
+            writeAnimations(base, randomPalette);
+            return;
+        }
+        DateFormat dateFormat = new SimpleDateFormat("yyyyMMdd_HHmmss");
+        final String ts = dateFormat.format(new Date());
+        final RenderCache cache = (mCacheDir == null) ? null :
+                // the batch only copies files in and out, so keeps none in memory
+                new RenderCache(mCacheDir, 0, mCacheSize);
+
+        ExecutorService jobs = Executors.newFixedThreadPool(Math.min(mJobs, mCount));
+        List<Future<File>> results = new ArrayList<Future<File>>();
+        // each job's seed, read once its future is done
+        final long[] seeds = new long[mCount];
+        for (int n = 0; n < mCount; n++)
+        {
+            final int index = n;
+            results.add(jobs.submit(new Callable<File>()
+            {
+                public File call() throws IOException
+                {
+                    StarfishEngine sfe = fitBudget(mSeed + index, base, randomPalette);
+                    seeds[index] = sfe.mSeed;
+                    byte[] tree = TreeCodec.encode(sfe);
+                    String name = (mCount == 1) ? "starfish-" + ts :
+                            String.format("starfish-%s-%04d", ts, index);
+                    File f = new File(mOutDir, name + ".png");
+                    // a profile needs a render, so it skips the cache
+                    String key = (cache == null || mProfile) ? null : RenderCache.key(sfe);
+                    if (key != null && cache.copyTo(key, f))
+                    {
+                        saveTree(sfe, mOutDir, name);
+                        return f;
+                    }
+                    Profiler profiler = mProfile ? new Profiler() : null;
+                    prepare(sfe, profiler);
+                    if (mStream)
+                    {
+                        writeStreaming(new TileRenderer(sfe), f, tree);
+                    }
+                    else
+                    {
+                        int[] rgb = new TileRenderer(sfe).render(null, null);
+                        PngEncoder.writeFile(f, rgb, mWidth, mHeight, tree);
+                    }
+                    if (key != null)
+                    {
+                        cache.putFile(key, f);
+                    }
+                    saveTree(sfe, mOutDir, name);
+                    printProfile(f, profiler);
+                    return f;
+                }
+            }));
+        }
+        jobs.shutdown();
+        try
+        {
+            for (int n = 0; n < mCount; n++)
+            {
+                System.out.println(results.get(n).get().getPath() + " seed " + seeds[n]);
+            }
+        }
+        finally
+        {
+            jobs.shutdownNow();
+        }
+    }
+
+    static int run(String[] args)
+    {
+        try
+        {
+            StarfishPalette[] palettes = StarfishPalette.loadPalettes();
+            StarfishBatch batch = new StarfishBatch();
+            if (batch.parse(args, palettes))
+            {
+                batch.renderAll(palettes);
+            }
+            return 0;
+        }
+        catch (IllegalArgumentException e)
+        {
+            System.err.println(e.getMessage());
+            usage();
+            return 2;
+        }
+        catch (ExecutionException e)
+        {
+            System.err.println("No Starfish for you! " + e.getCause());
+            return 1;
+        }
+        catch (Exception e)
+        {
+            System.err.println("No Starfish for you! " + e);
+            return 1;
+        }
+    }
+}
+
+// Renders PNGs over HTTP:
+//     java starfish.StarfishServer [--port 8080] [--jobs N] [--queue N] ...
+//     GET /render?width=1920&height=1080&palette=Random&complexity=50
+//             &aa=ax4&wrap=none&quality=exact&seed=42
+// Requests are handled on virtual threads where the JDK has them, and on a
+// cached pool where it does not. Each is admitted before its tree is
+// generated, fitted to the budget and hashed, and at most jobs + queue are
+// admitted at once; beyond that requests are turned away with 429, so a
+// flood costs no more than parsing its URLs. Of the admitted, at most jobs
+// images render at once. Requests for an image that is already being
+// rendered wait for that render rather than starting another, and a
+// render nobody is waiting for any more is cancelled.
+class StarfishServer implements HttpHandler
+{
+    static final int MAX_COMPLEXITY = 100;
+    // seeds tried for a tree within the budget before giving up
+    static final int BUDGET_TRIES = 100;
+
+    StarfishPalette[] mPalettes;
+    // One permit per request being handled. This mostly keeps mRenderPool
+    // from filling, but not always: a render whose waiters all timed out
+    // keeps its worker until its next tile, while their permits are free
+    // again, so a new render can still be rejected, and is answered 429.
+    Semaphore mAdmission;
+    ThreadPoolExecutor mRenderPool;
+    RenderCache mCache;
+    long mTimeoutMillis = 30000;
+    long mMaxPixels = 4096L * 4096L;
+    double mBudgetMillis = 0;
+    boolean mCompile;
+    // guarded by itself
+    Map<String, Render> mInFlight = new HashMap<String, Render>();
+
+    // One image being rendered, and the number of requests waiting for it.
+    static class Render
+    {
+        TileRenderer mRenderer;
+        CompletableFuture<byte[]> mResult = new CompletableFuture<byte[]>();
+        int mWaiters;
+    }
+
+    StarfishServer(StarfishPalette[] palettes, int jobs, int queue, RenderCache cache)
+    {
+        mPalettes = palettes;
+        mCache = cache;
+        mAdmission = new Semaphore(jobs + queue);
+        mRenderPool = new ThreadPoolExecutor(jobs, jobs, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(queue));
+    }
+
+    static ExecutorService newRequestExecutor()
+    {
+        try
+        {
+            Method m = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) m.invoke(null);
+        }
+        catch (ReflectiveOperationException e)
+        {
+            return Executors.newCachedThreadPool();
+        }
+    }
+
+    static Map<String, String> parseQuery(String query)
+    {
+        Map<String, String> out = new HashMap<String, String>();
+        if (query == null)
+        {
+            return out;
+        }
+        for (String pair : query.split("&"))
+        {
+            int eq = pair.indexOf('=');
+            if (eq > 0)
+            {
+                out.put(URLDecoder.decode(pair.substring(0, eq), StandardCharsets.UTF_8),
+                        URLDecoder.decode(pair.substring(eq + 1), StandardCharsets.UTF_8));
+            }
+        }
+        return out;
+    }
+
+    StarfishEngine newEngine(Map<String, String> q)
+    {
+        int width = StarfishBatch.parsePositive("width", q.getOrDefault("width", "1280"));
+        int height = StarfishBatch.parsePositive("height", q.getOrDefault("height", "800"));
+        if ((long) width * height > mMaxPixels)
+        {
+            throw new IllegalArgumentException("more than " + mMaxPixels + " pixels");
+        }
+        int complexity = StarfishBatch.parsePositive("complexity", q.getOrDefault("complexity", "50"));
+        if (complexity > MAX_COMPLEXITY)
+        {
+            throw new IllegalArgumentException("complexity above " + MAX_COMPLEXITY);
+        }
+        AAMode aamode = StarfishBatch.parseAAMode(q.getOrDefault("aa", "none"));
+        WrapMode wrapMode = StarfishBatch.parseWrapMode(q.getOrDefault("wrap", "none"));
+        boolean fastMath = StarfishBatch.parseQuality(q.getOrDefault("quality", "exact"));
+        long seed = q.containsKey("seed") ? Long.parseLong(q.get("seed")) : StarfishEngine.newSeed();
+        StarfishPalette base = StarfishBatch.findPalette(mPalettes, q.getOrDefault("palette", "Random"));
+        boolean randomPalette = base.name.equals("Random");
+        // A tree over the budget is replaced, unless the seed was asked for.
+        for (int tries = 1; ; tries++)
+        {
+            StarfishEngine sfe = new StarfishEngine(width, height,
+                    StarfishBatch.paletteFor(seed, base, randomPalette),
+                    wrapMode, complexity, aamode, seed, fastMath);
+            if (mBudgetMillis <= 0 || CostModel.millis(sfe) <= mBudgetMillis)
+            {
+                sfe.simplify(SimplifyMode.SIMPLIFY_EXACT);
+                return sfe;
+            }
+            if (q.containsKey("seed"))
+            {
+                throw new IllegalArgumentException("seed " + seed + " is over the render budget");
+            }
+            if (tries == BUDGET_TRIES)
+            {
+                throw new IllegalArgumentException("no tree within the render budget at this size");
+            }
+            seed = StarfishEngine.nextSeed(seed);
+        }
+    }
+
+    public void handle(HttpExchange exchange) throws IOException
+    {
+        long deadline = System.nanoTime() + mTimeoutMillis * 1000000L;
+        try
+        {
+            if (!exchange.getRequestMethod().equals("GET"))
+            {
+                send(exchange, 405, "GET only");
+                return;
+            }
+            Map<String, String> q = parseQuery(exchange.getRequestURI().getRawQuery());
+            if (!mAdmission.tryAcquire())
+            {
+                exchange.getResponseHeaders().set("Retry-After", "1");
+                send(exchange, 429, "too many requests waiting");
+                return;
+            }
+            try
+            {
+                respond(exchange, q, deadline);
+            }
+            finally
+            {
+                mAdmission.release();
+            }
+        }
+        catch (RejectedExecutionException e)
+        {
+            exchange.getResponseHeaders().set("Retry-After", "1");
+            send(exchange, 429, "too many renders waiting");
+        }
+        catch (TimeoutException e)
+        {
+            send(exchange, 503, "render timed out");
+        }
+        catch (Exception e)
+        {
+            // the details are for the log, not for whoever sent the request
+            System.err.println("No Starfish for " + exchange.getRequestURI() + ": " + e);
+            send(exchange, 500, "No Starfish for you!");
+        }
+        finally
+        {
+            exchange.close();
+        }
+    }
+
+    // Generates the tree, which takes up to BUDGET_TRIES tries with a
+    // budget, and sends its image; called holding a permit of mAdmission.
+    void respond(HttpExchange exchange, Map<String, String> q, long deadline) throws Exception
+    {
+        StarfishEngine sfe;
+        try
+        {
+            sfe = newEngine(q);
+        }
+        catch (IllegalArgumentException e)
+        {
+            send(exchange, 400, e.getMessage());
+            return;
+        }
+        String key = RenderCache.key(sfe);
+        Headers headers = exchange.getResponseHeaders();
+        headers.set("ETag", "\"" + key + "\"");
+        headers.set("X-Starfish-Seed", Long.toString(sfe.mSeed));
+        // without a seed the same URL gives a new image every time
+        headers.set("Cache-Control", q.containsKey("seed") ?
+                "public, max-age=31536000, immutable" : "no-store");
+        if (("\"" + key + "\"").equals(exchange.getRequestHeaders().getFirst("If-None-Match")))
+        {
+            exchange.sendResponseHeaders(304, -1);
+            return;
+        }
+        byte[] png = (mCache == null) ? null : mCache.get(key);
+        if (png == null)
+        {
+            png = await(key, sfe, deadline);
+        }
+        if (png == null)
+        {
+            return;
+        }
+        headers.set("Content-Type", "image/png");
+        exchange.sendResponseHeaders(200, png.length);
+        exchange.getResponseBody().write(png);
+    }
+
+    // Joins the render of key, starting it if need be, and waits until the
+    // deadline.
+    byte[] await(String key, StarfishEngine sfe, long deadline) throws Exception
+    {
+        Render render;
+        synchronized (mInFlight)
+        {
+            render = mInFlight.get(key);
+            if (render == null)
+            {
+                render = start(key, sfe);
+            }
+            render.mWaiters++;
+        }
+        try
+        {
+            return render.mResult.get(Math.max(0L, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+        }
+        catch (TimeoutException e)
+        {
+            synchronized (mInFlight)
+            {
+                if (--render.mWaiters == 0 && mInFlight.get(key) == render)
+                {
+                    mInFlight.remove(key);
+                    render.mRenderer.cancel();
+                }
+            }
+            throw e;
+        }
+        catch (ExecutionException e)
+        {
+            if (e.getCause() instanceof Exception)
+            {
+                throw (Exception) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    // called holding mInFlight
+    private Render start(final String key, final StarfishEngine sfe)
+    {
+        final Render render = new Render();
+        render.mRenderer = new TileRenderer(sfe);
+        mRenderPool.execute(new Runnable()
+        {
+            public void run()
+            {
+                try
+                {
+                    byte[] tree = TreeCodec.encode(sfe);
+                    if (mCompile)
+                    {
+                        sfe.compile();
+                    }
+                    int[] rgb = render.mRenderer.render(null, null);
+                    if (render.mRenderer.isCancelled())
+                    {
+                        render.mResult.cancel(false);
+                        return;
+                    }
+                    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                    PngEncoder png = new PngEncoder(bytes, sfe.mWidth, sfe.mHeight);
+                    png.addChunk(TreeCodec.PNG_CHUNK, tree);
+                    png.writeRows(rgb, 0, sfe.mHeight);
+                    png.finish();
+                    byte[] data = bytes.toByteArray();
+                    render.mResult.complete(data);
+                    // the image is served whether or not the cache keeps it
+                    if (mCache != null)
+                    {
+                        try
+                        {
+                            mCache.put(key, data);
+                        }
+                        catch (IOException e)
+                        {
+                            System.err.println("cannot cache " + key + ": " + e);
+                        }
+                    }
+                }
+                catch (Throwable t)
+                {
+                    render.mResult.completeExceptionally(t);
+                }
+                finally
+                {
+                    synchronized (mInFlight)
+                    {
+                        if (mInFlight.get(key) == render)
+                        {
+                            mInFlight.remove(key);
+                        }
+                    }
+                }
+            }
+        });
+        mInFlight.put(key, render);
+        return render;
+    }
+
+    static void send(HttpExchange exchange, int code, String message) throws IOException
+    {
+        byte[] body = (message + "\n").getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        exchange.sendResponseHeaders(code, body.length);
+        exchange.getResponseBody().write(body);
+    }
+
+    static void usage()
+    {
+        System.err.println("usage: StarfishServer [options]");
+        System.err.println("  --host ADDR        address to listen on (localhost)");
+        System.err.println("  --port N           port to listen on (8080)");
+        System.err.println("  --jobs N           images rendered at once (cores)");
+        System.err.println("  --queue N          requests that may wait for a job (4 x jobs);");
+        System.err.println("                     more are refused with 429");
+        System.err.println("  --timeout S        seconds a request waits for its image (30)");
+        System.err.println("  --max-pixels N     largest image served (16777216)");
+        System.err.println("  --budget-ms N      serve only trees estimated to take at most N ms of");
+        System.err.println("                     one core; others are replaced, or refused if the");
+        System.err.println("                     request gave a seed");
+        System.err.println("  --calibrate        time the node types on this machine at startup");
+        System.err.println("  --compile          compile each tree to a specialized class first");
+        System.err.println("  --cache DIR        keep rendered images in DIR");
+        System.err.println("  --cache-size MB    disk space the cache may use (1024)");
+        System.err.println("  --cache-memory MB  memory the cache may use (64)");
+    }
+
+    public static void main(String[] args)
+    {
+        String host = "localhost";
+        int port = 8080;
+        int jobs = Runtime.getRuntime().availableProcessors();
+        int queue = -1;
+        long timeout = 30;
+        long maxPixels = 4096L * 4096L;
+        boolean compile = false;
+        boolean calibrate = false;
+        double budget = 0;
+        File cacheDir = null;
+        long cacheMemory = 64L << 20;
+        long cacheSize = 1024L << 20;
+        try
+        {
+            for (int i = 0; i < args.length; i++)
+            {
+                String arg = args[i];
+                if (arg.equals("--compile"))
+                {
+                    compile = true;
+                    continue;
+                }
+                if (arg.equals("--calibrate"))
+                {
+                    calibrate = true;
+                    continue;
+                }
+                if (i + 1 >= args.length)
+                {
+                    throw new IllegalArgumentException("missing value for " + arg);
+                }
+                String value = args[++i];
+                if (arg.equals("--host")) host = value;
+                else if (arg.equals("--port")) port = StarfishBatch.parsePositive(arg, value);
+                else if (arg.equals("--jobs")) jobs = StarfishBatch.parsePositive(arg, value);
+                else if (arg.equals("--queue")) queue = StarfishBatch.parsePositive(arg, value);
+                else if (arg.equals("--timeout")) timeout = StarfishBatch.parsePositive(arg, value);
+                else if (arg.equals("--max-pixels")) maxPixels = StarfishBatch.parsePositive(arg, value);
+                else if (arg.equals("--budget-ms")) budget = StarfishBatch.parsePositive(arg, value);
+                else if (arg.equals("--cache")) cacheDir = new File(value);
+                else if (arg.equals("--cache-size")) cacheSize = (long) StarfishBatch.parsePositive(arg, value) << 20;
+                else if (arg.equals("--cache-memory")) cacheMemory = (long) StarfishBatch.parsePositive(arg, value) << 20;
+                else throw new IllegalArgumentException("unknown option: " + arg);
+            }
+        }
+        catch (IllegalArgumentException e)
+        {
+            System.err.println(e.getMessage());
+            usage();
+            System.exit(2);
+        }
+        try
+        {
+            RenderCache cache = (cacheDir == null) ? null : new RenderCache(cacheDir, cacheMemory, cacheSize);
+            StarfishServer handler = new StarfishServer(StarfishPalette.loadPalettes(),
+                    jobs, (queue < 0) ? 4 * jobs : queue, cache);
+            handler.mTimeoutMillis = timeout * 1000L;
+            handler.mMaxPixels = maxPixels;
+            handler.mBudgetMillis = budget;
+            if (calibrate)
+            {
+                CostModel.calibrate();
+            }
+            handler.mCompile = compile;
+            HttpServer server = HttpServer.create(new InetSocketAddress(host, port), 0);
+            server.createContext("/render", handler);
+            server.setExecutor(newRequestExecutor());
+            server.start();
+            System.out.println("Starfish serving on http://" + host + ":" + port + "/render");
+        }
+        catch (Exception e)
+        {
+            System.err.println("No Starfish for you! " + e);
+            System.exit(1);
+        }
+    }
+}
+
+// Micro-benchmarks for individual nodes and for whole engines, run with
+//     java starfish.StarfishBenchmark [--warmup ms] [--time ms] [filter]
+// Each case warms up, then repeats a fixed batch of work for the measuring
+// time and reports the mean cost and the bytes allocated per operation
+// (one operation is one sample for node cases and one pixel for engine
+// cases). Trees and node parameters come from fixed seeds so numbers are
+// comparable from one release to the next.
+class StarfishBenchmark
+{
+    static final int SAMPLES = 4096;
+    static final int BLOCK = 32;
+    static final int[] COMPLEXITIES = { 10, 30, 60, 100 };
+    static final long[] SEEDS = { 1, 2, 3, 4 };
+
+    static volatile long sink;
+
+    long mWarmupNanos = 500L * 1000000L;
+    long mMeasureNanos = 1000L * 1000000L;
+
+    interface Case
+    {
+        // Does one batch of work and returns how many operations it was.
+        int run();
+    }
+
+    static double[] sweep(int n, double from, double to)
+    {
+        double[] d = new double[n];
+        for (int i = 0; i < n; i++)
+        {
+            d[i] = from + (to - from) * i / (n - 1);
+        }
+        return d;
+    }
+
+    static Case linearCase(final LinearWave w)
+    {
+        final double[] d = sweep(SAMPLES, -2.0, 2.0);
+        return new Case()
+        {
+            public int run()
+            {
+                double acc = 0;
+                for (int i = 0; i < SAMPLES; i++)
+                {
+                    acc += w.value(d[i]);
+                }
+                sink += (long) acc;
+                return SAMPLES;
+            }
+        };
+    }
+
+    static Case planarCase(final PlanarWave w)
+    {
+        final double[] c = sweep(64, -1.0, 1.0);
+        return new Case()
+        {
+            public int run()
+            {
+                double acc = 0;
+                for (int j = 0; j < 64; j++)
+                {
+                    for (int i = 0; i < 64; i++)
+                    {
+                        acc += w.value(c[i], c[j]);
+                    }
+                }
+                sink += (long) acc;
+                return 64 * 64;
+            }
+        };
+    }
+
+    static Case layerCase(final ImageLayer l)
+    {
+        final double[] c = sweep(64, -1.0, 1.0);
+        return new Case()
+        {
+            public int run()
+            {
+                long acc = 0;
+                for (int j = 0; j < 64; j++)
+                {
+                    for (int i = 0; i < 64; i++)
+                    {
+                        acc += l.value(c[i], c[j]);
+                    }
+                }
+                sink += acc;
+                return 64 * 64;
+            }
+        };
+    }
+
+    static final int PIXELS = 0;
+    static final int ROWS = 1;
+    static final int BLOCKS = 2;
+
+    // Renders successive BLOCK x BLOCK squares of each engine in turn, so
+    // a run averages over the whole image and over several trees.
+    static Case engineCase(final StarfishEngine[] engines, final int kind)
+    {
+        return new Case()
+        {
+            int mEngine;
+            int mBlock;
+            int[] mRow = new int[BLOCK];
+            int[] mBlockOut = new int[BLOCK * BLOCK];
+
+            public int run()
+            {
+                StarfishEngine e = engines[mEngine];
+                int across = e.mWidth / BLOCK;
+                int blocks = across * (e.mHeight / BLOCK);
+                int x0 = (mBlock % across) * BLOCK;
+                int y0 = (mBlock / across) * BLOCK;
+                long acc = 0;
+                if (kind == BLOCKS)
+                {
+                    e.getBlock(x0, y0, BLOCK, BLOCK, mBlockOut, 0, BLOCK);
+                    acc += mBlockOut[0];
+                }
+                for (int j = y0; j < y0 + BLOCK && kind != BLOCKS; j++)
+                {
+                    if (kind == ROWS)
+                    {
+                        e.getRow(x0, j, BLOCK, mRow, 0);
+                        acc += mRow[0];
+                    }
+                    else
+                    {
+                        for (int i = x0; i < x0 + BLOCK; i++)
+                        {
+                            acc += e.getPixel(i, j);
+                        }
+                    }
+                }
+                sink += acc;
+                if (++mBlock == blocks)
+                {
+                    mBlock = 0;
+                    mEngine = (mEngine + 1) % engines.length;
+                }
+                return BLOCK * BLOCK;
+            }
+        };
+    }
+
+    // Cheap fixed children so a node case mostly measures the node itself.
+    static LinearWave leaf(SplittableRandom r)
+    {
+        return new Coswave(r, false);
+    }
+
+    static PlanarWave planeLeaf(SplittableRandom r)
+    {
+        return new Curtain(new Coswave(r, false));
+    }
+
+    static StarfishPalette benchPalette()
+    {
+        return StarfishEngine.initRandomPalette(new StarfishPalette(), new SplittableRandom(1));
+    }
+
+    static Map<String, Case> cases()
+    {
+        Map<String, Case> cases = new LinkedHashMap<String, Case>();
+        SplittableRandom r = new SplittableRandom(1);
+        StarfishPalette palette = benchPalette();
+
+        cases.put("node.Coswave", linearCase(new Coswave(r, false)));
+        cases.put("node.Sawtooth", linearCase(new Sawtooth(r)));
+        cases.put("node.Ess", linearCase(new Ess(r)));
+        cases.put("node.Spinflake", planarCase(new Spinflake(r, leaf(r), false)));
+        cases.put("node.Starfish2", planarCase(new Starfish2(r, leaf(r), leaf(r), false)));
+        cases.put("node.Hexatesselator", planarCase(new Hexatesselator(r, planeLeaf(r))));
+        cases.put("node.Rotawarp", planarCase(new Rotawarp(r, planeLeaf(r), leaf(r), false)));
+        cases.put("node.Gradientor", layerCase(new Gradientor(r, planeLeaf(r), palette)));
+        cases.put("node.Compositor", layerCase(new Compositor(
+                new Gradientor(r, planeLeaf(r), palette), planeLeaf(r),
+                new Gradientor(r, planeLeaf(r), palette))));
+        cases.put("node.AntialiasImage.x2", layerCase(new AntialiasImage(
+                new Gradientor(r, planeLeaf(r), palette), 1280, 800, AAMode.AAMODE_2X)));
+        cases.put("node.AntialiasImage.x4", layerCase(new AntialiasImage(
+                new Gradientor(r, planeLeaf(r), palette), 1280, 800, AAMode.AAMODE_4X)));
+        // the fast-math variants come after the cases above so those still draw
+        // the same parameters from r as they always have
+        cases.put("node.Coswave.fast", linearCase(new Coswave(r, true)));
+        cases.put("node.Spinflake.fast", planarCase(new Spinflake(r, leaf(r), true)));
+        cases.put("node.Starfish2.fast", planarCase(new Starfish2(r, leaf(r), leaf(r), true)));
+        cases.put("node.Rotawarp.fast", planarCase(new Rotawarp(r, planeLeaf(r), leaf(r), true)));
+
+        for (int complexity : COMPLEXITIES)
+        {
+            for (AAMode aa : AAMode.values())
+            {
+                for (WrapMode wrap : WrapMode.values())
+                {
+                    StarfishEngine[] engines = new StarfishEngine[SEEDS.length];
+                    for (int i = 0; i < SEEDS.length; i++)
+                    {
+                        engines[i] = new StarfishEngine(1280, 800, palette, wrap,
+                                complexity, aa, SEEDS[i], false);
+                    }
+                    String name = "engine.c" + complexity + "." + aa.name().substring(7).toLowerCase()
+                            + (wrap == WrapMode.WRAP_BLEND ? ".wrap" : "")
+                            + (wrap == WrapMode.WRAP_MIRROR ? ".mirror" : "");
+                    // the adaptive modes need neighbours, so they are only
+                    // timed a block at a time, as the renderer runs them
+                    if (engines[0].mEdgeSamples == 0)
+                    {
+                        cases.put(name + ".getPixel", engineCase(engines, PIXELS));
+                        cases.put(name + ".getRow", engineCase(engines, ROWS));
+                    }
+                    cases.put(name + ".getBlock", engineCase(engines, BLOCKS));
+                }
+            }
+        }
+        return cases;
+    }
+
+    static long allocatedBytes()
+    {
+        java.lang.management.ThreadMXBean mx = ManagementFactory.getThreadMXBean();
+        if (mx instanceof com.sun.management.ThreadMXBean)
+        {
+            return ((com.sun.management.ThreadMXBean) mx).getThreadAllocatedBytes(
+                    Thread.currentThread().getId());
+        }
+        return -1;
+    }
+
+    void measure(String name, Case c)
+    {
+        long end = System.nanoTime() + mWarmupNanos;
+        while (System.nanoTime() < end)
+        {
+            c.run();
+        }
+        long ops = 0;
+        long bytes = allocatedBytes();
+        long start = System.nanoTime();
+        end = start + mMeasureNanos;
+        long now;
+        do
+        {
+            ops += c.run();
+            now = System.nanoTime();
+        }
+        while (now < end);
+        long allocated = allocatedBytes() - bytes;
+        System.out.printf("%-40s %12.1f ns/op %10.3f B/op%n", name,
+                (now - start) / (double) ops, bytes < 0 ? Double.NaN : allocated / (double) ops);
+    }
+
+    public static void main(String[] args)
+    {
+        StarfishBenchmark bench = new StarfishBenchmark();
+        String filter = "";
+        for (int i = 0; i < args.length; i++)
+        {
+            if (args[i].equals("--warmup") && i + 1 < args.length)
+            {
+                bench.mWarmupNanos = Long.parseLong(args[++i]) * 1000000L;
+            }
+            else if (args[i].equals("--time") && i + 1 < args.length)
+            {
+                bench.mMeasureNanos = Long.parseLong(args[++i]) * 1000000L;
+            }
+            else
+            {
+                filter = args[i];
+            }
+        }
+        for (Map.Entry<String, Case> e : cases().entrySet())
+        {
+            if (e.getKey().contains(filter))
+            {
+                bench.measure(e.getKey(), e.getValue());
+            }
+        }
+    }
+}
+
+class DisplayWindow extends JDialog
+{
+    // finished tiles are shown at most this often
+    private static final int FRAME_MILLIS = 40;
+
+    private JPanel panel = new JPanel();
+    private JFrame mainFrame = new JFrame();
+    private JButton saveButton = new JButton("Save");
+    private BufferedImage bi;
+    private Thread runThread;
+    private Rectangle dirty;
+
+    DisplayWindow(final StarfishEngine sfe, final int width, final int height)
+    {
+        saveButton.addActionListener(new ActionListener()
+        {			
+            public void actionPerformed(ActionEvent evt)
+            {
+                JFileChooser fc = new JFileChooser();
+                PathSingleton.getInstance();
+                File f = PathSingleton.getPath();
+                if (!f.toString().equals("")) fc.setCurrentDirectory(f);
                 fc.setDialogTitle("Whither Thou Goest...");
                 fc.setFileFilter(new FileFilter()
                 {        	
@@ -1115,7 +8070,11 @@ class DisplayWindow extends JDialog
                 {
                     try 
                     {
-                        ImageIO.write(bi, "png", fc.getSelectedFile());
+                        // the tree goes in too, so the picture can be
+                        // rendered again from the file at any size
+                        int[] rgb = ((DataBufferInt) bi.getRaster().getDataBuffer()).getData();
+                        PngEncoder.writeFile(fc.getSelectedFile(), rgb, width, height,
+                                TreeCodec.encode(sfe));
                         mainFrame.dispose();
                         PathSingleton.setPath(fc.getCurrentDirectory());
                     } 
@@ -1138,44 +8097,105 @@ class DisplayWindow extends JDialog
         panel.add(picLabel);
         panel.add(saveButton);
         mainFrame.getContentPane().add(panel);
-        mainFrame.setTitle("JStarfish");
+        mainFrame.setTitle("JStarfish - seed " + sfe.mSeed);
         mainFrame.setMinimumSize(new Dimension(Math.max(100,width+5), height+70));
         mainFrame.setPreferredSize(new Dimension(width+5, height+70));
         mainFrame.setLocation(240, 40);
         mainFrame.setVisible(true);
 
+        // The renderer writes straight into the image's own pixels; the
+        // timer repaints whatever tiles have changed since its last tick.
+        final TileRenderer renderer = new TileRenderer(sfe);
+        final int[] rgb = ((DataBufferInt) bi.getRaster().getDataBuffer()).getData();
+        final Timer repaintTimer = new Timer(FRAME_MILLIS, new ActionListener()
+        {
+            public void actionPerformed(ActionEvent evt)
+            {
+                repaintDirty(picLabel);
+            }
+        });
+        repaintTimer.start();
         runThread = new Thread(new Runnable() 
         {
             public void run() 
             {
-                for (int i=0; i < width; i++)
+                renderer.renderProgressive(rgb, new TileListener()
                 {
-                    for (int j = 0; j < height; j++)
+                    // Early passes are drawn as step x step blocks. Only the
+                    // sample at each block's corner is real, and later passes
+                    // overwrite the rest.
+                    public void tileDone(int x, int y, int w, int h, int step)
                     {
-                        pixel p = sfe.getPixel(i,j);
-                        int c = (p.red * 65536) + (p.green * 256) + p.blue;
-                        bi.setRGB(i, j, c); 
+                        if (step > 1)
+                        {
+                            for (int j = 0; j < h; j++)
+                            {
+                                int row = (y + j) * width + x;
+                                int source = (y + j - j % step) * width + x;
+                                for (int i = 0; i < w; i++)
+                                {
+                                    rgb[row + i] = rgb[source + i - i % step];
+                                }
+                            }
+                        }
+                        markDirty(x, y, w, h);
+                        if (!mainFrame.isVisible()) 
+                        {
+                            renderer.cancel();
+                        }
                     }
-                    if (!mainFrame.isVisible()) 
+                });
+                SwingUtilities.invokeLater(new Runnable()
+                {
+                    public void run()
                     {
-                        runThread.interrupt();
-                        break;
+                        repaintTimer.stop();
+                        repaintDirty(picLabel);
+                        if (!renderer.isCancelled())
+                        {
+                            saveButton.setEnabled(true);
+                        }
                     }
-                    picLabel.repaint();
-                }
-                saveButton.setEnabled(true);
+                });
             }
         }, "JStarFish");
         runThread.start();
     }
+
+    private synchronized void markDirty(int x, int y, int w, int h)
+    {
+        Rectangle r = new Rectangle(x, y, w, h);
+        dirty = (dirty == null) ? r : dirty.union(r);
+    }
+
+    private synchronized Rectangle takeDirty()
+    {
+        Rectangle r = dirty;
+        dirty = null;
+        return r;
+    }
+
+    // The label centres its icon inside its border.
+    private void repaintDirty(JLabel picLabel)
+    {
+        Rectangle r = takeDirty();
+        if (r == null)
+        {
+            return;
+        }
+        Insets insets = picLabel.getInsets();
+        int left = insets.left + (picLabel.getWidth() - insets.left - insets.right - bi.getWidth()) / 2;
+        int top = insets.top + (picLabel.getHeight() - insets.top - insets.bottom - bi.getHeight()) / 2;
+        picLabel.repaint(left + r.x, top + r.y, r.width, r.height);
+    }
 }
 
 public class Starfish extends JDialog
 {
     String width[] = {"64", "128", "256", "320", "400", "512", "640", "1024", "1280"};
     String height[] = {"64", "128", "256", "384", "400", "512", "768", "800", "1200", "1600"};
-    String wrapEdges[] = {"True", "False"};
-    String aamode[] = {"None", "x2", "x4"};
+    String wrapEdges[] = {"True", "Mirror", "False"};
+    String aamode[] = {"None", "x2", "x4", "Edges x4", "Edges x8", "Edges x16"};
     String complexity[] = {"10", "20", "30", "40", "50", "60", "70", "80", "90", "100"};
 
     private JComboBox widthBox = new JComboBox(width);
@@ -1200,12 +8220,16 @@ public class Starfish extends JDialog
     private JFrame mainFrame = new JFrame();
     private JPanel panel = new JPanel();
 
-    private StarfishPalette palettes[] = new StarfishPalette[256];
-    int numberOfPalettes;
-    int numberOfColors;
+    private StarfishPalette palettes[] = new StarfishPalette[0];
+    private Random rnd = new Random();
 
     public static void main(String[] args)
     {
+        if (args.length > 0)
+        {
+            System.setProperty("java.awt.headless", "true");
+            System.exit(StarfishBatch.run(args));
+        }
     	System.setProperty("apple.awt.application.appearance", "system");
 		System.setProperty( "apple.awt.application.name", "JStarfish" );
         try
@@ -1224,39 +8248,11 @@ public class Starfish extends JDialog
         try
         {
             paletteBox.removeAllItems();
-            InputStream is = getClass().getResourceAsStream("/resource/palettes.txt");
-            InputStreamReader isr = new InputStreamReader(is);
-            BufferedReader br = new BufferedReader(isr);
-            String w = "";
-            numberOfPalettes = 0;
-            numberOfColors = 0;
-            while ((w = br.readLine()) != null) 
-            {       					        	
-                if (!w.equals(""))
-                {
-                    if (w.startsWith("#"))
-                    {	            				            			
-                        paletteBox.addItem(w.substring(1));
-                        palettes[numberOfPalettes] = new StarfishPalette();
-                    }
-                    else if (w.startsWith("="))
-                    {
-                        palettes[numberOfPalettes].colourCount = numberOfColors;
-                        numberOfColors = 0;
-                        numberOfPalettes++;
-                    }
-                    else
-                    {
-                        int c = Integer.parseInt(w, 16);	
-                        int r = (c >>> 16) & 0xFF;	            			
-                        int g = (c >>> 8) & 0xFF;
-                        int b = (c) & 0xFF;
-                        palettes[numberOfPalettes].colour[numberOfColors] = new pixel(r,g,b);	            			
-                        numberOfColors++;
-                    }
-                }
+            palettes = StarfishPalette.loadPalettes();
+            for (int i = 0; i < palettes.length; i++)
+            {
+                paletteBox.addItem(palettes[i].name);
             }
-            br.close();
         }
         catch (Exception ex)
         {
@@ -1267,7 +8263,7 @@ public class Starfish extends JDialog
         {			
             public void actionPerformed(ActionEvent evt)
             {
-                final RandomSingleton r = RandomSingleton.getInstance();
+                final Random r = rnd;
                 int rn = r.nextInt(widthBox.getItemCount());
                 widthBox.setSelectedIndex(rn);
                 rn = r.nextInt(heightBox.getItemCount());
@@ -1289,21 +8285,22 @@ public class Starfish extends JDialog
             {
                 int width = Integer.parseInt((String) widthBox.getSelectedItem());
                 int height = Integer.parseInt((String) heightBox.getSelectedItem());
-                StarfishPalette palette = new StarfishPalette();
-                StarfishPalette p = palettes[paletteBox.getSelectedIndex()];
-                palette.colourCount = p.colourCount;
-                for (int i = 0; i < palette.colourCount; i++)
-                {
-                    palette.colour[i] = new pixel(p.colour[i].red,p.colour[i].green,p.colour[i].blue);
-                }
-                boolean wrapEdges = true;
-                if ((heightBox.getSelectedItem()).equals("False")) wrapEdges = false;
+                StarfishPalette palette = palettes[paletteBox.getSelectedIndex()].copy();
+                int wrap = wrapEdgesBox.getSelectedIndex();
+                WrapMode wrapMode = WrapMode.WRAP_NONE;
+                if (wrap == 0) wrapMode = WrapMode.WRAP_BLEND;
+                else if (wrap == 1) wrapMode = WrapMode.WRAP_MIRROR;
                 int complexity = Integer.parseInt((String) complexityBox.getSelectedItem());
                 int aa = aamodeBox.getSelectedIndex();
                 AAMode aamode = AAMode.AAMODE_NONE;
                 if (aa == 1) aamode = AAMode.AAMODE_2X;
-                else if (aa == 2) aamode = AAMode.AAMODE_4X;				
-                StarfishEngine sfe = new StarfishEngine(width, height, palette, wrapEdges, complexity, aamode);
+                else if (aa == 2) aamode = AAMode.AAMODE_4X;
+                else if (aa == 3) aamode = AAMode.AAMODE_ADAPTIVE_4X;
+                else if (aa == 4) aamode = AAMode.AAMODE_ADAPTIVE_8X;
+                else if (aa == 5) aamode = AAMode.AAMODE_ADAPTIVE_16X;				
+                StarfishEngine sfe = new StarfishEngine(width, height, palette, wrapMode, complexity, aamode,
+                        StarfishEngine.newSeed(), false);
+                sfe.simplify(SimplifyMode.SIMPLIFY_EXACT);
                 new DisplayWindow(sfe, width, height);
             }
         });